@@ -15,26 +15,52 @@
 
 package io.baudtime.client;
 
+import io.baudtime.client.netty.ClientRuntime;
+import io.baudtime.client.netty.EncodedAddRequest;
+import io.baudtime.client.netty.Future;
+import io.baudtime.client.netty.MergeStats;
 import io.baudtime.client.netty.TcpClient;
 import io.baudtime.message.*;
 
-import java.util.Arrays;
-import java.util.Collection;
-import java.util.Date;
+import java.util.*;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class BaudClient implements Client {
 
     private final TcpClient tcpClient;
+    private final QueryCache queryCache;
+    private final ExtentCache extentCache;
+    private final RangeSplitter rangeSplitter;
+    private final MetadataCache metadataCache;
     private final AtomicBoolean closed = new AtomicBoolean(false);
 
-    BaudClient(TcpClient tcpClient) {
+    BaudClient(TcpClient tcpClient, ClientConfig clientConfig, ClientRuntime runtime) {
         this.tcpClient = tcpClient;
+        long cacheBytes = clientConfig.getQueryCacheMaxBytes();
+        boolean extents = cacheBytes > 0 && clientConfig.isQueryCacheExtents();
+        this.queryCache = cacheBytes > 0 ? new QueryCache(clientConfig, extents ? cacheBytes / 2 : cacheBytes) : null;
+        this.extentCache = extents ? new ExtentCache(clientConfig, cacheBytes - cacheBytes / 2) : null;
+        this.rangeSplitter = clientConfig.getRangeQuerySplitPoints() > 0 ? new RangeSplitter(clientConfig) : null;
+        this.metadataCache = clientConfig.getMetadataCacheMaxBytes() > 0 ? new MetadataCache(tcpClient, clientConfig, runtime) : null;
     }
 
     @Override
-    public QueryResponse instantQuery(String queryExp, Date time, long timeout, TimeUnit unit) {
+    public QueryResponse instantQuery(final String queryExp, final Date time, final long timeout, final TimeUnit unit) {
+        if (queryCache == null || queryExp == null) {
+            return (QueryResponse) tcpClient.query(instantQueryRequest(queryExp, time, timeout, unit), timeout, unit);
+        }
+
+        long end = time == null ? System.currentTimeMillis() : time.getTime();
+        return queryCache.get(QueryCache.instantKey(queryExp, time), end, timeout, unit, new QueryCache.Loader() {
+            @Override
+            public QueryResponse load() {
+                return (QueryResponse) tcpClient.query(instantQueryRequest(queryExp, time, timeout, unit), timeout, unit);
+            }
+        });
+    }
+
+    static InstantQueryRequest instantQueryRequest(String queryExp, Date time, long timeout, TimeUnit unit) {
         String timeoutSec = String.valueOf(unit.toSeconds(timeout));
 
         InstantQueryRequest.Builder reqBuilder = InstantQueryRequest.newBuilder();
@@ -43,11 +69,54 @@ public class BaudClient implements Client {
             reqBuilder.setTime(time);
         }
 
-        return (QueryResponse) tcpClient.query(reqBuilder.build(), timeout, unit);
+        return reqBuilder.build();
     }
 
     @Override
-    public QueryResponse rangeQuery(String queryExp, Date start, Date end, long step, long timeout, TimeUnit unit) {
+    public QueryResponse rangeQuery(final String queryExp, Date start, Date end, final long step, final long timeout, final TimeUnit unit) {
+        final long stepMillis = unit.toMillis(step);
+        if (queryCache == null || queryExp == null || start == null || end == null || stepMillis <= 0) {
+            return fetchRange(queryExp, start, end, step, timeout, unit);
+        }
+
+        // aligned to the step so that the same dashboard opened a bit later still hits
+        final Date alignedStart = new Date(start.getTime() - start.getTime() % stepMillis);
+        final Date alignedEnd = new Date(end.getTime() - end.getTime() % stepMillis);
+        String key = QueryCache.rangeKey(queryExp, alignedStart.getTime(), alignedEnd.getTime(), stepMillis);
+
+        return queryCache.get(key, alignedEnd.getTime(), timeout, unit, new QueryCache.Loader() {
+            @Override
+            public QueryResponse load() {
+                if (extentCache == null) {
+                    return fetchRange(queryExp, alignedStart, alignedEnd, step, timeout, unit);
+                }
+
+                // the up to three fetches of an extent query share the timeout
+                final long deadline = System.nanoTime() + unit.toNanos(timeout);
+                return extentCache.rangeQuery(QueryCache.extentKey(queryExp, stepMillis), alignedStart.getTime(), alignedEnd.getTime(), stepMillis,
+                        new ExtentCache.Fetcher() {
+                            @Override
+                            public QueryResponse fetch(long start, long end) {
+                                long remaining = deadline - System.nanoTime();
+                                if (remaining <= 0) {
+                                    throw new RuntimeException("response timed out");
+                                }
+                                return fetchRange(queryExp, new Date(start), new Date(end), unit.toNanos(step), remaining, TimeUnit.NANOSECONDS);
+                            }
+                        });
+            }
+        });
+    }
+
+    // what is not served from the caches, split into sub-queries when it is too long
+    private QueryResponse fetchRange(String queryExp, Date start, Date end, long step, long timeout, TimeUnit unit) {
+        if (rangeSplitter != null && rangeSplitter.shouldSplit(start, end, unit.toMillis(step))) {
+            return rangeSplitter.rangeQuery(tcpClient, queryExp, start.getTime(), end.getTime(), step, timeout, unit);
+        }
+        return (QueryResponse) tcpClient.query(rangeQueryRequest(queryExp, start, end, step, timeout, unit), timeout, unit);
+    }
+
+    static RangeQueryRequest rangeQueryRequest(String queryExp, Date start, Date end, long step, long timeout, TimeUnit unit) {
         if (start == null) {
             throw new RuntimeException("start time must be provided");
         }
@@ -67,17 +136,29 @@ public class BaudClient implements Client {
             throw new RuntimeException("exceeded maximum resolution of 11,000 points per timeseries. Try decreasing the query resolution (?step=XX)");
         }
 
-        String timeoutSec = String.valueOf(unit.toSeconds(timeout));
+        // rounded up, what is left of a shared timeout is often less than a second
+        String timeoutSec = String.valueOf((unit.toMillis(timeout) + 999) / 1000);
         String stepSec = String.valueOf(unit.toSeconds(step));
 
         RangeQueryRequest.Builder reqBuilder = RangeQueryRequest.newBuilder();
         reqBuilder.setQuery(queryExp).setTimeout(timeoutSec).setStart(start).setEnd(end).setStep(stepSec);
 
-        return (QueryResponse) tcpClient.query(reqBuilder.build(), timeout, unit);
+        return reqBuilder.build();
     }
 
     @Override
     public SeriesLabelsResponse seriesLabels(Collection<String> matches, Date start, Date end, long timeout, TimeUnit unit) {
+        if (metadataCache == null) {
+            return (SeriesLabelsResponse) tcpClient.query(seriesLabelsRequest(matches, start, end, timeout, unit), timeout, unit);
+        }
+
+        start = metadataCache.alignStart(start);
+        end = metadataCache.alignEnd(end);
+        SeriesLabelsRequest request = seriesLabelsRequest(matches, start, end, timeout, unit);
+        return (SeriesLabelsResponse) metadataCache.get(MetadataCache.seriesLabelsKey(matches, start, end), request, timeout, unit);
+    }
+
+    static SeriesLabelsRequest seriesLabelsRequest(Collection<String> matches, Date start, Date end, long timeout, TimeUnit unit) {
         if (start == null) {
             throw new RuntimeException("start time must be provided");
         }
@@ -94,11 +175,22 @@ public class BaudClient implements Client {
         SeriesLabelsRequest.Builder reqBuilder = SeriesLabelsRequest.newBuilder();
         reqBuilder.setMatches(matches).setStart(start).setEnd(end).setTimeout(timeoutSec);
 
-        return (SeriesLabelsResponse) tcpClient.query(reqBuilder.build(), timeout, unit);
+        return reqBuilder.build();
     }
 
     @Override
     public LabelValuesResponse labelValues(String name, Collection<String> matches, Date start, Date end, long timeout, TimeUnit unit) {
+        if (metadataCache == null) {
+            return (LabelValuesResponse) tcpClient.query(labelValuesRequest(name, matches, start, end, timeout, unit), timeout, unit);
+        }
+
+        start = metadataCache.alignStart(start);
+        end = metadataCache.alignEnd(end);
+        LabelValuesRequest request = labelValuesRequest(name, matches, start, end, timeout, unit);
+        return (LabelValuesResponse) metadataCache.get(MetadataCache.labelValuesKey(name, matches, start, end), request, timeout, unit);
+    }
+
+    static LabelValuesRequest labelValuesRequest(String name, Collection<String> matches, Date start, Date end, long timeout, TimeUnit unit) {
         if (name == null) {
             throw new RuntimeException("label name must be provided");
         }
@@ -108,7 +200,55 @@ public class BaudClient implements Client {
         LabelValuesRequest.Builder reqBuilder = LabelValuesRequest.newBuilder();
         reqBuilder.setName(name).setMatches(matches).setStart(start).setEnd(end).setTimeout(timeoutSec);
 
-        return (LabelValuesResponse) tcpClient.query(reqBuilder.build(), timeout, unit);
+        return reqBuilder.build();
+    }
+
+    /**
+     * Values of every label name under the same matchers, asked at once on one connection instead of a call per name.
+     */
+    public Map<String, LabelValuesResponse> batchLabelValues(Collection<String> names, Collection<String> matches, Date start, Date end, long timeout, TimeUnit unit) {
+        List<LabelValuesRequest> requests = new ArrayList<LabelValuesRequest>(names.size());
+        for (String name : names) {
+            requests.add(labelValuesRequest(name, matches, start, end, timeout, unit));
+        }
+
+        List<BaudMessage> responses = tcpClient.batchQuery(requests, timeout, unit);
+
+        Map<String, LabelValuesResponse> result = new LinkedHashMap<String, LabelValuesResponse>();
+        Iterator<BaudMessage> it = responses.iterator();
+        for (String name : names) {
+            result.put(name, (LabelValuesResponse) it.next());
+        }
+        return result;
+    }
+
+    /**
+     * Series labels of every group of matchers, asked at once on one connection, in the order of the groups.
+     */
+    public List<SeriesLabelsResponse> batchSeriesLabels(List<? extends Collection<String>> matchesList, Date start, Date end, long timeout, TimeUnit unit) {
+        List<SeriesLabelsRequest> requests = new ArrayList<SeriesLabelsRequest>(matchesList.size());
+        for (Collection<String> matches : matchesList) {
+            requests.add(seriesLabelsRequest(matches, start, end, timeout, unit));
+        }
+
+        List<SeriesLabelsResponse> result = new ArrayList<SeriesLabelsResponse>(requests.size());
+        for (BaudMessage response : tcpClient.batchQuery(requests, timeout, unit)) {
+            result.add((SeriesLabelsResponse) response);
+        }
+        return result;
+    }
+
+    /**
+     * Pipelines label value and series label requests, built with their builders, on one connection.
+     * Responses come back in request order, the batch fails as a whole if any request does.
+     */
+    public List<BaudMessage> batchQuery(List<? extends BaudMessage> requests, long timeout, TimeUnit unit) {
+        for (BaudMessage request : requests) {
+            if (!(request instanceof LabelValuesRequest) && !(request instanceof SeriesLabelsRequest)) {
+                throw new RuntimeException("only label values and series labels requests can be batched");
+            }
+        }
+        return tcpClient.batchQuery(requests, timeout, unit);
     }
 
     @Override
@@ -124,6 +264,30 @@ public class BaudClient implements Client {
         tcpClient.append(series);
     }
 
+    @Override
+    public void write(Collection<Series> series, WriteMode mode) {
+        if (series == null || series.size() <= 0) {
+            throw new RuntimeException("some series should be provided");
+        }
+        tcpClient.append(series, mode);
+    }
+
+    Future asyncQuery(BaudMessage request, long timeout, TimeUnit unit) {
+        return tcpClient.asyncQuery(request, timeout, unit);
+    }
+
+    EncodedAddRequest encode(Collection<Series> series, WriteMode mode) {
+        return mode == null ? tcpClient.encode(series) : tcpClient.encode(series, mode);
+    }
+
+    Future write(EncodedAddRequest request) {
+        return tcpClient.append(request);
+    }
+
+    public MergeStats mergeStats() {
+        return tcpClient.mergeStats();
+    }
+
     @Override
     public void close() {
         if (closed.compareAndSet(false, true)) {
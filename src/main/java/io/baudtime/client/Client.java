@@ -37,6 +37,8 @@ public interface Client {
 
     void write(Collection<Series> series);
 
+    void write(Collection<Series> series, WriteMode mode);
+
     void close();
 
     boolean isClosed();
@@ -19,9 +19,11 @@ import io.baudtime.client.netty.*;
 import io.baudtime.discovery.ServiceAddrProvider;
 import io.baudtime.message.BaudMessage;
 import io.baudtime.message.GeneralResponse;
+import io.baudtime.util.WaitStrategy;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ThreadFactory;
 
 public abstract class ClientBuilder<B, C extends Client> {
 
@@ -103,6 +105,11 @@ public abstract class ClientBuilder<B, C extends Client> {
         return thisBuilder();
     }
 
+    public B minConnectionsOnEachServer(int minConnectionsOnEachServer) {
+        this.configBuilder.minConnectionsOnEachServer(minConnectionsOnEachServer);
+        return thisBuilder();
+    }
+
     public B flushChannelOnEachWrite(boolean flushChannelOnEachWrite) {
         this.configBuilder.flushChannelOnEachWrite(flushChannelOnEachWrite);
         return thisBuilder();
@@ -113,6 +120,121 @@ public abstract class ClientBuilder<B, C extends Client> {
         return thisBuilder();
     }
 
+    public B writeTimeoutMillis(int writeTimeoutMillis) {
+        this.configBuilder.writeTimeoutMillis(writeTimeoutMillis);
+        return thisBuilder();
+    }
+
+    public B transportType(TransportType transportType) {
+        this.configBuilder.transportType(transportType);
+        return thisBuilder();
+    }
+
+    public B ioThreads(int ioThreads) {
+        this.configBuilder.ioThreads(ioThreads);
+        return thisBuilder();
+    }
+
+    public B ioThreadFactory(ThreadFactory ioThreadFactory) {
+        this.configBuilder.ioThreadFactory(ioThreadFactory);
+        return thisBuilder();
+    }
+
+    public B tcpCork(boolean tcpCork) {
+        this.configBuilder.tcpCork(tcpCork);
+        return thisBuilder();
+    }
+
+    public B tcpQuickAck(boolean tcpQuickAck) {
+        this.configBuilder.tcpQuickAck(tcpQuickAck);
+        return thisBuilder();
+    }
+
+    public B busyPollMicros(int busyPollMicros) {
+        this.configBuilder.busyPollMicros(busyPollMicros);
+        return thisBuilder();
+    }
+
+    public B epollEdgeTriggered(boolean epollEdgeTriggered) {
+        this.configBuilder.epollEdgeTriggered(epollEdgeTriggered);
+        return thisBuilder();
+    }
+
+    public B workerThreads(int workerThreads) {
+        this.configBuilder.workerThreads(workerThreads);
+        return thisBuilder();
+    }
+
+    public B consistentHashRouting(int virtualNodes) {
+        this.configBuilder.hashRingVirtualNodes(virtualNodes);
+        return thisBuilder();
+    }
+
+    public B writeMode(WriteMode writeMode) {
+        this.configBuilder.writeMode(writeMode);
+        return thisBuilder();
+    }
+
+    public B healthCheckTimeoutMillis(int healthCheckTimeoutMillis) {
+        this.configBuilder.healthCheckTimeoutMillis(healthCheckTimeoutMillis);
+        return thisBuilder();
+    }
+
+    public B healthCheckPing(boolean healthCheckPing) {
+        this.configBuilder.healthCheckPing(healthCheckPing);
+        return thisBuilder();
+    }
+
+    public B healthCheckDownThreshold(int healthCheckDownThreshold) {
+        this.configBuilder.healthCheckDownThreshold(healthCheckDownThreshold);
+        return thisBuilder();
+    }
+
+    public B healthCheckUpThreshold(int healthCheckUpThreshold) {
+        this.configBuilder.healthCheckUpThreshold(healthCheckUpThreshold);
+        return thisBuilder();
+    }
+
+    public B hedgeQueries(boolean hedgeQueries) {
+        this.configBuilder.hedgeQueries(hedgeQueries);
+        return thisBuilder();
+    }
+
+    public B hedgeDelayMillis(int hedgeDelayMillis) {
+        this.configBuilder.hedgeDelayMillis(hedgeDelayMillis);
+        return thisBuilder();
+    }
+
+    public B hedgeBudgetPercent(int hedgeBudgetPercent) {
+        this.configBuilder.hedgeBudgetPercent(hedgeBudgetPercent);
+        return thisBuilder();
+    }
+
+    public B queryCache(long maxBytes, long ttlMillis, long recentTtlMillis) {
+        this.configBuilder.queryCacheMaxBytes(maxBytes).queryCacheTtlMillis(ttlMillis).queryCacheRecentTtlMillis(recentTtlMillis);
+        return thisBuilder();
+    }
+
+    public B queryCacheExtents(boolean queryCacheExtents) {
+        this.configBuilder.queryCacheExtents(queryCacheExtents);
+        return thisBuilder();
+    }
+
+    public B splitRangeQueries(int pointsPerQuery, int concurrency) {
+        this.configBuilder.rangeQuerySplitPoints(pointsPerQuery).rangeQuerySplitConcurrency(concurrency);
+        return thisBuilder();
+    }
+
+    public B metadataCache(long maxBytes, long ttlMillis, long staleMillis) {
+        this.configBuilder.metadataCacheMaxBytes(maxBytes).metadataCacheTtlMillis(ttlMillis).metadataCacheStaleMillis(staleMillis);
+        return thisBuilder();
+    }
+
+    public B metadataCacheWindowMillis(long metadataCacheWindowMillis) {
+        this.configBuilder.metadataCacheWindowMillis(metadataCacheWindowMillis);
+        return thisBuilder();
+    }
+
     public B stickyWorkerNum(int workerNum) {
         this.configBuilder.stickyWorkerNum(workerNum);
         return thisBuilder();
@@ -123,6 +245,26 @@ public abstract class ClientBuilder<B, C extends Client> {
         return thisBuilder();
     }
 
+    public B stickyWaitStrategy(WaitStrategy waitStrategy) {
+        this.configBuilder.stickyWaitStrategy(waitStrategy);
+        return thisBuilder();
+    }
+
+    public B stickyLingerMillis(long lingerMillis) {
+        this.configBuilder.stickyLingerMillis(lingerMillis);
+        return thisBuilder();
+    }
+
+    public B stickyMaxBatchBytes(int maxBatchBytes) {
+        this.configBuilder.stickyMaxBatchBytes(maxBatchBytes);
+        return thisBuilder();
+    }
+
+    public B stickyMaxBatchSeries(int maxBatchSeries) {
+        this.configBuilder.stickyMaxBatchSeries(maxBatchSeries);
+        return thisBuilder();
+    }
+
     @Deprecated
     public B stickyQueueCapacity(int queueCapacity) {
         return thisBuilder();
@@ -136,6 +278,35 @@ public abstract class ClientBuilder<B, C extends Client> {
         return RecordsAdaptor.wrap(build(), recordsConverter);
     }
 
+    protected void checkRouting(ClientConfig clientConfig) {
+        int routings = 0;
+        if (keyMapping != null) {
+            routings++;
+        }
+        if (clientConfig.getStickyConfig() != null) {
+            routings++;
+        }
+        if (clientConfig.getHashRingVirtualNodes() > 0) {
+            routings++;
+        }
+        if (routings > 1) {
+            throw new RuntimeException("only one of key mapping, sticky config and consistent hash routing can be set");
+        }
+    }
+
+    protected TcpClient newTcpClient(ClientConfig clientConfig, ClientRuntime runtime, ServiceAddrProvider serviceAddrProvider) {
+        if (keyMapping != null) {
+            return new KeyBoundClient(keyMapping, clientConfig, runtime, serviceAddrProvider, futureListener);
+        }
+        if (clientConfig.getStickyConfig() != null) {
+            return new StickyClient(clientConfig, runtime, serviceAddrProvider, futureListener);
+        }
+        if (clientConfig.getHashRingVirtualNodes() > 0) {
+            return new ConsistentHashClient(clientConfig, runtime, serviceAddrProvider, futureListener);
+        }
+        return new RoundRobinClient(clientConfig, runtime, serviceAddrProvider, futureListener);
+    }
+
     public static class SingleEndpointClientBuilder extends ClientBuilder<SingleEndpointClientBuilder, BaudClient> {
         private ServiceAddrProvider serviceAddrProvider;
 
@@ -150,26 +321,14 @@ public abstract class ClientBuilder<B, C extends Client> {
                 throw new RuntimeException("serviceAddrProvider must be provided");
             }
             ClientConfig clientConfig = configBuilder.build();
+            checkRouting(clientConfig);
 
-            TcpClient tcpClient = null;
-
-            if (keyMapping != null && clientConfig.getStickyConfig() != null) {
-                throw new RuntimeException("must not set key mapping and sticky config at the same time");
-            }
-
-            if (keyMapping == null && clientConfig.getStickyConfig() == null) {
-                tcpClient = new RoundRobinClient(clientConfig, serviceAddrProvider, futureListener);
+            ClientRuntime runtime = ClientRuntime.create(clientConfig);
+            try {
+                return new BaudClient(newTcpClient(clientConfig, runtime, serviceAddrProvider), clientConfig, runtime);
+            } finally {
+                runtime.release();
             }
-
-            if (keyMapping == null && clientConfig.getStickyConfig() != null) {
-                tcpClient = new StickyClient(clientConfig, serviceAddrProvider, futureListener);
-            }
-
-            if (keyMapping != null && clientConfig.getStickyConfig() == null) {
-                tcpClient = new KeyBoundClient(keyMapping, clientConfig, serviceAddrProvider, futureListener);
-            }
-
-            return new BaudClient(tcpClient);
         }
 
         @Override
@@ -192,33 +351,22 @@ public abstract class ClientBuilder<B, C extends Client> {
             }
 
             ClientConfig clientConfig = configBuilder.build();
+            checkRouting(clientConfig);
 
-            if (keyMapping != null && clientConfig.getStickyConfig() != null) {
-                throw new RuntimeException("must not set key mapping and sticky config at the same time");
-            }
-
-            MultiEndpointClient multiEndpointClient = new MultiEndpointClient();
-            for (Map.Entry<String, ServiceAddrProvider> e : multiEndpointAddrProviders.entrySet()) {
-                String endPoint = e.getKey();
-                ServiceAddrProvider serviceAddrProvider = e.getValue();
+            // all endpoints share the threads and buffers of one runtime, it is shut down when the last of them is closed
+            ClientRuntime runtime = ClientRuntime.create(clientConfig);
+            try {
+                MultiEndpointClient multiEndpointClient = new MultiEndpointClient();
+                for (Map.Entry<String, ServiceAddrProvider> e : multiEndpointAddrProviders.entrySet()) {
+                    String endPoint = e.getKey();
+                    ServiceAddrProvider serviceAddrProvider = e.getValue();
 
-                TcpClient tcpClient = null;
-
-                if (keyMapping == null && clientConfig.getStickyConfig() == null) {
-                    tcpClient = new RoundRobinClient(clientConfig, serviceAddrProvider, futureListener);
-                }
-
-                if (keyMapping == null && clientConfig.getStickyConfig() != null) {
-                    tcpClient = new StickyClient(clientConfig, serviceAddrProvider, futureListener);
+                    multiEndpointClient.addEndpoint(endPoint, new BaudClient(newTcpClient(clientConfig, runtime, serviceAddrProvider), clientConfig, runtime));
                 }
-
-                if (keyMapping != null && clientConfig.getStickyConfig() == null) {
-                    tcpClient = new KeyBoundClient(keyMapping, clientConfig, serviceAddrProvider, futureListener);
-                }
-
-                multiEndpointClient.addEndpoint(endPoint, new BaudClient(tcpClient));
+                return multiEndpointClient;
+            } finally {
+                runtime.release();
             }
-            return multiEndpointClient;
         }
 
         @Override
@@ -17,6 +17,9 @@ package io.baudtime.client;
 
 
 import io.baudtime.util.Assert;
+import io.baudtime.util.WaitStrategy;
+
+import java.util.concurrent.ThreadFactory;
 
 public class ClientConfig {
 
@@ -30,9 +33,47 @@ public class ClientConfig {
     private int maxResponseFrameLength;
 
     private int maxConnectionsOnEachServer;
+    private int minConnectionsOnEachServer;
     private boolean flushChannelOnEachWrite;
 
     private int channelMaxIdleTimeSeconds;
+    private int writeTimeoutMillis;
+
+    private TransportType transportType;
+    private int ioThreads;
+    private ThreadFactory ioThreadFactory;
+    private boolean tcpCork;
+    private boolean tcpQuickAck;
+    private int busyPollMicros;
+    private boolean epollEdgeTriggered;
+
+    private int workerThreads;
+
+    private WriteMode writeMode;
+
+    private int hashRingVirtualNodes;
+
+    private int healthCheckTimeoutMillis;
+    private boolean healthCheckPing;
+    private int healthCheckDownThreshold;
+    private int healthCheckUpThreshold;
+
+    private boolean hedgeQueries;
+    private int hedgeDelayMillis;
+    private int hedgeBudgetPercent;
+
+    private long queryCacheMaxBytes;
+    private long queryCacheTtlMillis;
+    private long queryCacheRecentTtlMillis;
+    private boolean queryCacheExtents;
+
+    private int rangeQuerySplitPoints;
+    private int rangeQuerySplitConcurrency;
+
+    private long metadataCacheMaxBytes;
+    private long metadataCacheTtlMillis;
+    private long metadataCacheStaleMillis;
+    private long metadataCacheWindowMillis;
 
     private StickyConfig stickyConfig;
 
@@ -72,6 +113,13 @@ public class ClientConfig {
         return maxConnectionsOnEachServer;
     }
 
+    /**
+     * Connections opened in the background to every healthy address as soon as it shows up, 0 means lazily.
+     */
+    public int getMinConnectionsOnEachServer() {
+        return minConnectionsOnEachServer;
+    }
+
     public boolean isFlushChannelOnEachWrite() {
         return flushChannelOnEachWrite;
     }
@@ -80,6 +128,187 @@ public class ClientConfig {
         return channelMaxIdleTimeSeconds;
     }
 
+    /**
+     * A write still unanswered after this long fails, queries are bounded by their own timeout.
+     */
+    public int getWriteTimeoutMillis() {
+        return writeTimeoutMillis;
+    }
+
+    public TransportType getTransportType() {
+        return transportType;
+    }
+
+    /**
+     * Event loop threads, 0 lets netty decide.
+     */
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    /**
+     * Creates the event loop threads if not null, e.g. to pin them to cores with an affinity library.
+     */
+    public ThreadFactory getIoThreadFactory() {
+        return ioThreadFactory;
+    }
+
+    /**
+     * Epoll only. Corked sockets only send full segments, at the cost of up to 200ms delay on partial ones.
+     */
+    public boolean isTcpCork() {
+        return tcpCork;
+    }
+
+    /**
+     * Epoll only.
+     */
+    public boolean isTcpQuickAck() {
+        return tcpQuickAck;
+    }
+
+    /**
+     * Epoll only, the SO_BUSY_POLL of sockets in microseconds, 0 means disabled.
+     */
+    public int getBusyPollMicros() {
+        return busyPollMicros;
+    }
+
+    /**
+     * Epoll only, level-triggered otherwise.
+     */
+    public boolean isEpollEdgeTriggered() {
+        return epollEdgeTriggered;
+    }
+
+    /**
+     * Threads the batching workers of sticky clients run on, shared by all the endpoints of a multi endpoint client.
+     */
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public WriteMode getWriteMode() {
+        return writeMode;
+    }
+
+    /**
+     * Virtual nodes of each address when series are routed by consistent hashing, 0 means disabled.
+     */
+    public int getHashRingVirtualNodes() {
+        return hashRingVirtualNodes;
+    }
+
+    public int getHealthCheckTimeoutMillis() {
+        return healthCheckTimeoutMillis;
+    }
+
+    /**
+     * Whether a health check also waits for the server to acknowledge an empty add request, rather than just connecting.
+     */
+    public boolean isHealthCheckPing() {
+        return healthCheckPing;
+    }
+
+    public int getHealthCheckDownThreshold() {
+        return healthCheckDownThreshold;
+    }
+
+    public int getHealthCheckUpThreshold() {
+        return healthCheckUpThreshold;
+    }
+
+    /**
+     * Whether an instant or range query still unanswered after the hedge delay is also sent to another address.
+     */
+    public boolean isHedgeQueries() {
+        return hedgeQueries;
+    }
+
+    /**
+     * 0 means the p95 latency observed on the address the query went to.
+     */
+    public int getHedgeDelayMillis() {
+        return hedgeDelayMillis;
+    }
+
+    /**
+     * At most this percent of queries are hedged.
+     */
+    public int getHedgeBudgetPercent() {
+        return hedgeBudgetPercent;
+    }
+
+    /**
+     * Bound of the query result cache, 0 means queries are not cached.
+     */
+    public long getQueryCacheMaxBytes() {
+        return queryCacheMaxBytes;
+    }
+
+    public long getQueryCacheTtlMillis() {
+        return queryCacheTtlMillis;
+    }
+
+    /**
+     * TTL of results reaching into the last few minutes, whose points may still change.
+     */
+    public long getQueryCacheRecentTtlMillis() {
+        return queryCacheRecentTtlMillis;
+    }
+
+    /**
+     * Whether range queries reuse the cached samples of earlier ones with the same expression and step,
+     * asking the server only for the uncovered parts. queryCacheMaxBytes is then split evenly between
+     * the results and the extents, which expire after queryCacheTtlMillis like the results do.
+     */
+    public boolean isQueryCacheExtents() {
+        return queryCacheExtents;
+    }
+
+    /**
+     * Range queries evaluating more points than this per series are split into step-aligned sub-queries,
+     * 0 means they are never split.
+     */
+    public int getRangeQuerySplitPoints() {
+        return rangeQuerySplitPoints;
+    }
+
+    /**
+     * At most this many sub-queries of one split range query are in flight at a time.
+     */
+    public int getRangeQuerySplitConcurrency() {
+        return rangeQuerySplitConcurrency;
+    }
+
+    /**
+     * Bound of the label values and series labels cache in string bytes, 0 means they are not cached.
+     */
+    public long getMetadataCacheMaxBytes() {
+        return metadataCacheMaxBytes;
+    }
+
+    /**
+     * How long a cached label lookup is answered without asking the server again.
+     */
+    public long getMetadataCacheTtlMillis() {
+        return metadataCacheTtlMillis;
+    }
+
+    /**
+     * How long past its ttl a cached label lookup is still answered while it is refreshed in the background.
+     */
+    public long getMetadataCacheStaleMillis() {
+        return metadataCacheStaleMillis;
+    }
+
+    /**
+     * Start and end times of label lookups are widened to multiples of this, so that lookups a little apart share an entry.
+     */
+    public long getMetadataCacheWindowMillis() {
+        return metadataCacheWindowMillis;
+    }
+
     public StickyConfig getStickyConfig() {
         return stickyConfig;
     }
@@ -95,9 +324,47 @@ public class ClientConfig {
         private int maxResponseFrameLength = 150 * 1024 * 1024;
 
         private int maxConnectionsOnEachServer = 6;
+        private int minConnectionsOnEachServer;
         private boolean flushChannelOnEachWrite = true;
 
         private int channelMaxIdleTimeSeconds = 600;
+        private int writeTimeoutMillis = 30 * 1000;
+
+        private TransportType transportType = TransportType.AUTO;
+        private int ioThreads;
+        private ThreadFactory ioThreadFactory;
+        private boolean tcpCork;
+        private boolean tcpQuickAck;
+        private int busyPollMicros;
+        private boolean epollEdgeTriggered = true;
+
+        private int workerThreads = Runtime.getRuntime().availableProcessors();
+
+        private WriteMode writeMode = WriteMode.MERGE;
+
+        private int hashRingVirtualNodes;
+
+        private int healthCheckTimeoutMillis = 300;
+        private boolean healthCheckPing;
+        private int healthCheckDownThreshold = 1;
+        private int healthCheckUpThreshold = 1;
+
+        private boolean hedgeQueries;
+        private int hedgeDelayMillis;
+        private int hedgeBudgetPercent = 5;
+
+        private long queryCacheMaxBytes;
+        private long queryCacheTtlMillis = 5 * 60 * 1000;
+        private long queryCacheRecentTtlMillis = 10 * 1000;
+        private boolean queryCacheExtents;
+
+        private int rangeQuerySplitPoints;
+        private int rangeQuerySplitConcurrency = 4;
+
+        private long metadataCacheMaxBytes;
+        private long metadataCacheTtlMillis = 30 * 1000;
+        private long metadataCacheStaleMillis = 10 * 60 * 1000;
+        private long metadataCacheWindowMillis = 60 * 1000;
 
         private StickyConfig.Builder stickyConfigBuilder;
 
@@ -146,6 +413,11 @@ public class ClientConfig {
             return this;
         }
 
+        public Builder minConnectionsOnEachServer(int minConnectionsOnEachServer) {
+            this.minConnectionsOnEachServer = minConnectionsOnEachServer;
+            return this;
+        }
+
         public Builder flushChannelOnEachWrite(boolean flushChannelOnEachWrite) {
             this.flushChannelOnEachWrite = flushChannelOnEachWrite;
             return this;
@@ -156,6 +428,146 @@ public class ClientConfig {
             return this;
         }
 
+        public Builder writeTimeoutMillis(int writeTimeoutMillis) {
+            this.writeTimeoutMillis = writeTimeoutMillis;
+            return this;
+        }
+
+        public Builder transportType(TransportType transportType) {
+            this.transportType = transportType;
+            return this;
+        }
+
+        public Builder ioThreads(int ioThreads) {
+            this.ioThreads = ioThreads;
+            return this;
+        }
+
+        public Builder ioThreadFactory(ThreadFactory ioThreadFactory) {
+            this.ioThreadFactory = ioThreadFactory;
+            return this;
+        }
+
+        public Builder tcpCork(boolean tcpCork) {
+            this.tcpCork = tcpCork;
+            return this;
+        }
+
+        public Builder tcpQuickAck(boolean tcpQuickAck) {
+            this.tcpQuickAck = tcpQuickAck;
+            return this;
+        }
+
+        public Builder busyPollMicros(int busyPollMicros) {
+            this.busyPollMicros = busyPollMicros;
+            return this;
+        }
+
+        public Builder epollEdgeTriggered(boolean epollEdgeTriggered) {
+            this.epollEdgeTriggered = epollEdgeTriggered;
+            return this;
+        }
+
+        public Builder workerThreads(int workerThreads) {
+            this.workerThreads = workerThreads;
+            return this;
+        }
+
+        public Builder writeMode(WriteMode writeMode) {
+            this.writeMode = writeMode;
+            return this;
+        }
+
+        public Builder hashRingVirtualNodes(int hashRingVirtualNodes) {
+            this.hashRingVirtualNodes = hashRingVirtualNodes;
+            return this;
+        }
+
+        public Builder healthCheckTimeoutMillis(int healthCheckTimeoutMillis) {
+            this.healthCheckTimeoutMillis = healthCheckTimeoutMillis;
+            return this;
+        }
+
+        public Builder healthCheckPing(boolean healthCheckPing) {
+            this.healthCheckPing = healthCheckPing;
+            return this;
+        }
+
+        public Builder healthCheckDownThreshold(int healthCheckDownThreshold) {
+            this.healthCheckDownThreshold = healthCheckDownThreshold;
+            return this;
+        }
+
+        public Builder healthCheckUpThreshold(int healthCheckUpThreshold) {
+            this.healthCheckUpThreshold = healthCheckUpThreshold;
+            return this;
+        }
+
+        public Builder hedgeQueries(boolean hedgeQueries) {
+            this.hedgeQueries = hedgeQueries;
+            return this;
+        }
+
+        public Builder hedgeDelayMillis(int hedgeDelayMillis) {
+            this.hedgeDelayMillis = hedgeDelayMillis;
+            return this;
+        }
+
+        public Builder hedgeBudgetPercent(int hedgeBudgetPercent) {
+            this.hedgeBudgetPercent = hedgeBudgetPercent;
+            return this;
+        }
+
+        public Builder queryCacheMaxBytes(long queryCacheMaxBytes) {
+            this.queryCacheMaxBytes = queryCacheMaxBytes;
+            return this;
+        }
+
+        public Builder queryCacheTtlMillis(long queryCacheTtlMillis) {
+            this.queryCacheTtlMillis = queryCacheTtlMillis;
+            return this;
+        }
+
+        public Builder queryCacheRecentTtlMillis(long queryCacheRecentTtlMillis) {
+            this.queryCacheRecentTtlMillis = queryCacheRecentTtlMillis;
+            return this;
+        }
+
+        public Builder queryCacheExtents(boolean queryCacheExtents) {
+            this.queryCacheExtents = queryCacheExtents;
+            return this;
+        }
+
+        public Builder rangeQuerySplitPoints(int rangeQuerySplitPoints) {
+            this.rangeQuerySplitPoints = rangeQuerySplitPoints;
+            return this;
+        }
+
+        public Builder rangeQuerySplitConcurrency(int rangeQuerySplitConcurrency) {
+            this.rangeQuerySplitConcurrency = rangeQuerySplitConcurrency;
+            return this;
+        }
+
+        public Builder metadataCacheMaxBytes(long metadataCacheMaxBytes) {
+            this.metadataCacheMaxBytes = metadataCacheMaxBytes;
+            return this;
+        }
+
+        public Builder metadataCacheTtlMillis(long metadataCacheTtlMillis) {
+            this.metadataCacheTtlMillis = metadataCacheTtlMillis;
+            return this;
+        }
+
+        public Builder metadataCacheStaleMillis(long metadataCacheStaleMillis) {
+            this.metadataCacheStaleMillis = metadataCacheStaleMillis;
+            return this;
+        }
+
+        public Builder metadataCacheWindowMillis(long metadataCacheWindowMillis) {
+            this.metadataCacheWindowMillis = metadataCacheWindowMillis;
+            return this;
+        }
+
         public Builder stickyWorkerNum(int workerNum) {
             if (stickyConfigBuilder == null) {
                 stickyConfigBuilder = new StickyConfig.Builder();
@@ -172,7 +584,57 @@ public class ClientConfig {
             return this;
         }
 
+        public Builder stickyWaitStrategy(WaitStrategy waitStrategy) {
+            if (stickyConfigBuilder == null) {
+                stickyConfigBuilder = new StickyConfig.Builder();
+            }
+            this.stickyConfigBuilder.stickyWaitStrategy(waitStrategy);
+            return this;
+        }
+
+        public Builder stickyLingerMillis(long lingerMillis) {
+            if (stickyConfigBuilder == null) {
+                stickyConfigBuilder = new StickyConfig.Builder();
+            }
+            this.stickyConfigBuilder.stickyLingerMillis(lingerMillis);
+            return this;
+        }
+
+        public Builder stickyMaxBatchBytes(int maxBatchBytes) {
+            if (stickyConfigBuilder == null) {
+                stickyConfigBuilder = new StickyConfig.Builder();
+            }
+            this.stickyConfigBuilder.stickyMaxBatchBytes(maxBatchBytes);
+            return this;
+        }
+
+        public Builder stickyMaxBatchSeries(int maxBatchSeries) {
+            if (stickyConfigBuilder == null) {
+                stickyConfigBuilder = new StickyConfig.Builder();
+            }
+            this.stickyConfigBuilder.stickyMaxBatchSeries(maxBatchSeries);
+            return this;
+        }
+
         public ClientConfig build() {
+            Assert.notNull(transportType);
+            Assert.isNotNegative(ioThreads);
+            Assert.isNotNegative(busyPollMicros);
+            Assert.isPositive(workerThreads);
+            Assert.isPositive(writeTimeoutMillis);
+            Assert.isNotNegative(hedgeDelayMillis);
+            Assert.isNotNegative(hedgeBudgetPercent);
+            Assert.isNotNegative(queryCacheMaxBytes);
+            Assert.isNotNegative(queryCacheTtlMillis);
+            Assert.isNotNegative(queryCacheRecentTtlMillis);
+            Assert.isNotNegative(rangeQuerySplitPoints);
+            Assert.notBiggerThan(rangeQuerySplitPoints, 11000, "at most 11,000 points are evaluated per timeseries in one query");
+            Assert.isPositive(rangeQuerySplitConcurrency);
+            Assert.isNotNegative(metadataCacheMaxBytes);
+            Assert.isNotNegative(metadataCacheTtlMillis);
+            Assert.isNotNegative(metadataCacheStaleMillis);
+            Assert.isPositive(metadataCacheWindowMillis);
+
             ClientConfig config = new ClientConfig();
 
             config.connectTimeoutMillis = this.connectTimeoutMillis;
@@ -184,8 +646,37 @@ public class ClientConfig {
             config.readFlowControlLimit = this.readFlowControlLimit;
             config.maxResponseFrameLength = this.maxResponseFrameLength;
             config.maxConnectionsOnEachServer = this.maxConnectionsOnEachServer;
+            config.minConnectionsOnEachServer = this.minConnectionsOnEachServer;
             config.flushChannelOnEachWrite = this.flushChannelOnEachWrite;
             config.channelMaxIdleTimeSeconds = this.channelMaxIdleTimeSeconds;
+            config.writeTimeoutMillis = this.writeTimeoutMillis;
+            config.transportType = this.transportType;
+            config.ioThreads = this.ioThreads;
+            config.ioThreadFactory = this.ioThreadFactory;
+            config.tcpCork = this.tcpCork;
+            config.tcpQuickAck = this.tcpQuickAck;
+            config.busyPollMicros = this.busyPollMicros;
+            config.epollEdgeTriggered = this.epollEdgeTriggered;
+            config.workerThreads = this.workerThreads;
+            config.writeMode = this.writeMode;
+            config.hashRingVirtualNodes = this.hashRingVirtualNodes;
+            config.healthCheckTimeoutMillis = this.healthCheckTimeoutMillis;
+            config.healthCheckPing = this.healthCheckPing;
+            config.healthCheckDownThreshold = this.healthCheckDownThreshold;
+            config.healthCheckUpThreshold = this.healthCheckUpThreshold;
+            config.hedgeQueries = this.hedgeQueries;
+            config.hedgeDelayMillis = this.hedgeDelayMillis;
+            config.hedgeBudgetPercent = this.hedgeBudgetPercent;
+            config.queryCacheMaxBytes = this.queryCacheMaxBytes;
+            config.queryCacheTtlMillis = this.queryCacheTtlMillis;
+            config.queryCacheRecentTtlMillis = this.queryCacheRecentTtlMillis;
+            config.queryCacheExtents = this.queryCacheExtents;
+            config.rangeQuerySplitPoints = this.rangeQuerySplitPoints;
+            config.rangeQuerySplitConcurrency = this.rangeQuerySplitConcurrency;
+            config.metadataCacheMaxBytes = this.metadataCacheMaxBytes;
+            config.metadataCacheTtlMillis = this.metadataCacheTtlMillis;
+            config.metadataCacheStaleMillis = this.metadataCacheStaleMillis;
+            config.metadataCacheWindowMillis = this.metadataCacheWindowMillis;
 
             if (stickyConfigBuilder != null) {
                 config.stickyConfig = stickyConfigBuilder.build();
@@ -197,10 +688,19 @@ public class ClientConfig {
     public static class StickyConfig {
         private int workerNum;
         private int batchSize;
+        private WaitStrategy waitStrategy;
+        private long lingerMillis;
+        private int maxBatchBytes;
+        private int maxBatchSeries;
 
-        private StickyConfig(int workerNum, int batchSize) {
+        private StickyConfig(int workerNum, int batchSize, WaitStrategy waitStrategy,
+                             long lingerMillis, int maxBatchBytes, int maxBatchSeries) {
             this.workerNum = workerNum;
             this.batchSize = batchSize;
+            this.waitStrategy = waitStrategy;
+            this.lingerMillis = lingerMillis;
+            this.maxBatchBytes = maxBatchBytes;
+            this.maxBatchSeries = maxBatchSeries;
         }
 
         public int getWorkerNum() {
@@ -211,9 +711,38 @@ public class ClientConfig {
             return batchSize;
         }
 
+        public WaitStrategy getWaitStrategy() {
+            return waitStrategy;
+        }
+
+        /**
+         * How long a worker waits for more writes once a batch got its first series, 0 sends as soon as the queue is drained.
+         */
+        public long getLingerMillis() {
+            return lingerMillis;
+        }
+
+        /**
+         * Upper bound of the estimated encoded bytes of a batch, 0 means unlimited.
+         */
+        public int getMaxBatchBytes() {
+            return maxBatchBytes;
+        }
+
+        /**
+         * Upper bound of the series number of a batch, 0 means unlimited.
+         */
+        public int getMaxBatchSeries() {
+            return maxBatchSeries;
+        }
+
         private static class Builder {
             private int workerNum = Runtime.getRuntime().availableProcessors() / 2;
             private int batchSize = 512;
+            private WaitStrategy waitStrategy = WaitStrategy.PARK;
+            private long lingerMillis = 0;
+            private int maxBatchBytes = 4 * 1024 * 1024;
+            private int maxBatchSeries = 0;
 
             private Builder stickyWorkerNum(int workerNum) {
                 this.workerNum = workerNum;
@@ -225,14 +754,38 @@ public class ClientConfig {
                 return this;
             }
 
+            private Builder stickyWaitStrategy(WaitStrategy waitStrategy) {
+                this.waitStrategy = waitStrategy;
+                return this;
+            }
+
+            private Builder stickyLingerMillis(long lingerMillis) {
+                this.lingerMillis = lingerMillis;
+                return this;
+            }
+
+            private Builder stickyMaxBatchBytes(int maxBatchBytes) {
+                this.maxBatchBytes = maxBatchBytes;
+                return this;
+            }
+
+            private Builder stickyMaxBatchSeries(int maxBatchSeries) {
+                this.maxBatchSeries = maxBatchSeries;
+                return this;
+            }
+
             private StickyConfig build() {
                 Assert.isPositive(workerNum);
                 Assert.isPositive(batchSize);
+                Assert.notNull(waitStrategy);
+                Assert.isNotNegative(lingerMillis);
+                Assert.isNotNegative(maxBatchBytes);
+                Assert.isNotNegative(maxBatchSeries);
 
                 if (workerNum > Runtime.getRuntime().availableProcessors()) {
                     workerNum = Runtime.getRuntime().availableProcessors();
                 }
-                return new StickyConfig(workerNum, batchSize);
+                return new StickyConfig(workerNum, batchSize, waitStrategy, lingerMillis, maxBatchBytes, maxBatchSeries);
             }
         }
     }
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2019 The Baudtime Authors
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.baudtime.client;
+
+import io.baudtime.message.QueryResponse;
+import io.baudtime.message.StatusCode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps one contiguous, step-aligned extent of the matrix of every range query and step. A range query
+ * only asks the server for the parts outside the extent, usually the last few minutes, and stitches
+ * them to the cached samples. Samples of the recent window are never cached since they may still change,
+ * and an extent expires queryCacheTtlMillis after it was first cached, however much it grew since.
+ */
+class ExtentCache {
+    private static final Logger log = LoggerFactory.getLogger(ExtentCache.class);
+
+    interface Fetcher {
+        QueryResponse fetch(long start, long end);
+    }
+
+    private final long maxBytes;
+    private final long ttlMillis;
+    private final LinkedHashMap<String, Extent> extents = new LinkedHashMap<String, Extent>(16, 0.75f, true);
+    private long bytes;
+
+    ExtentCache(ClientConfig clientConfig, long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.ttlMillis = clientConfig.getQueryCacheTtlMillis();
+    }
+
+    /**
+     * start and end must be aligned to the step.
+     */
+    QueryResponse rangeQuery(String key, long start, long end, long stepMillis, Fetcher fetcher) {
+        long now = System.currentTimeMillis();
+        long cacheableEnd = now - QueryCache.RECENT_WINDOW_MILLIS;
+        cacheableEnd -= cacheableEnd % stepMillis;
+
+        Extent ext = get(key);
+        if (ext == null || end < ext.start - stepMillis || start > ext.end + stepMillis) {
+            QueryResponse resp = fetcher.fetch(start, end);
+            Matrix m = isSucceed(resp) ? parse(resp) : null;
+            if (m != null && cacheableEnd >= start) {
+                put(key, new Extent(start, Math.min(end, cacheableEnd), m.slice(start, cacheableEnd), System.currentTimeMillis() + ttlMillis));
+            }
+            return resp;
+        }
+
+        Matrix fetched = new Matrix();
+        if (start < ext.start) {
+            QueryResponse resp = fetcher.fetch(start, ext.start - stepMillis);
+            if (!isSucceed(resp)) {
+                return resp;
+            }
+            Matrix m = parse(resp);
+            if (m == null) {
+                return fetcher.fetch(start, end);
+            }
+            fetched = fetched.merge(m);
+        }
+        if (end > ext.end) {
+            QueryResponse resp = fetcher.fetch(ext.end + stepMillis, end);
+            if (!isSucceed(resp)) {
+                return resp;
+            }
+            Matrix m = parse(resp);
+            if (m == null) {
+                return fetcher.fetch(start, end);
+            }
+            fetched = fetched.merge(m);
+        }
+
+        Matrix result = ext.matrix.slice(start, end).merge(fetched);
+
+        long newStart = Math.min(start, ext.start);
+        long newEnd = Math.max(ext.end, Math.min(end, cacheableEnd));
+        if (newStart < ext.start || newEnd > ext.end) {
+            // growing an extent keeps its expiry, the samples cached first must not live on forever
+            put(key, new Extent(newStart, newEnd, ext.matrix.merge(fetched.slice(newStart, newEnd)), ext.expireAt));
+        }
+
+        return new QueryResponse(result.toQueryResult(), StatusCode.Succeed, "");
+    }
+
+    private static boolean isSucceed(QueryResponse resp) {
+        return resp != null && resp.getStatus() == StatusCode.Succeed && resp.hasResult();
+    }
+
+    // null if the result can't be read as a matrix, it is then passed through uncached
+    private static Matrix parse(QueryResponse resp) {
+        try {
+            return Matrix.parse(resp);
+        } catch (RuntimeException e) {
+            log.warn("uncacheable range query result, {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private synchronized Extent get(String key) {
+        Extent ext = extents.get(key);
+        if (ext != null && System.currentTimeMillis() - ext.expireAt >= 0) {
+            extents.remove(key);
+            bytes -= ext.size;
+            return null;
+        }
+        return ext;
+    }
+
+    private synchronized void put(String key, Extent extent) {
+        Extent old = extents.remove(key);
+        if (old != null) {
+            bytes -= old.size;
+        }
+        if (extent.size > maxBytes) {
+            return;
+        }
+
+        extents.put(key, extent);
+        bytes += extent.size;
+
+        Iterator<Map.Entry<String, Extent>> it = extents.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            bytes -= it.next().getValue().size;
+            it.remove();
+        }
+    }
+
+    private static class Extent {
+        private final long start;
+        private final long end;
+        private final Matrix matrix;
+        private final int size;
+        private final long expireAt;
+
+        private Extent(long start, long end, Matrix matrix, long expireAt) {
+            this.start = start;
+            this.end = end;
+            this.matrix = matrix;
+            this.size = matrix.estimatedBytes();
+            this.expireAt = expireAt;
+        }
+    }
+}
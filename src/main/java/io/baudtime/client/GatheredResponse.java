@@ -0,0 +1,53 @@
+/*
+ * Copyright 2019 The Baudtime Authors
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.baudtime.client;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The merged result of a scatter-gather query, with the endpoints that answered and the ones that
+ * failed or missed the deadline. The result only covers the succeeded endpoints.
+ */
+public class GatheredResponse<T> {
+    private final T result;
+    private final Set<String> succeeded;
+    private final Map<String, Throwable> failures;
+
+    GatheredResponse(T result, Set<String> succeeded, Map<String, Throwable> failures) {
+        this.result = result;
+        this.succeeded = Collections.unmodifiableSet(succeeded);
+        this.failures = Collections.unmodifiableMap(failures);
+    }
+
+    public T getResult() {
+        return result;
+    }
+
+    public Set<String> getSucceeded() {
+        return succeeded;
+    }
+
+    public Map<String, Throwable> getFailures() {
+        return failures;
+    }
+
+    public boolean isPartial() {
+        return !failures.isEmpty();
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2019 The Baudtime Authors
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.baudtime.client;
+
+import io.baudtime.message.*;
+
+import java.util.*;
+
+/**
+ * The series of a matrix query result keyed by their label set, with samples kept in primitive arrays.
+ */
+class Matrix {
+    private final Map<String, Samples> series = new LinkedHashMap<String, Samples>();
+
+    static Matrix parse(QueryResponse response) {
+        if (response.getResultType() != QueryResult.Type.MATRIX) {
+            throw new RuntimeException("not a matrix");
+        }
+
+        final Matrix m = new Matrix();
+        response.visitResult(new QueryResultVisitor() {
+            private Samples samples;
+
+            @Override
+            public boolean onSeries(List<Label> labels) {
+                samples = new Samples(labels);
+                return true;
+            }
+
+            @Override
+            public void onSample(long timestamp, double value) {
+                samples.add(timestamp, value);
+            }
+
+            @Override
+            public void onSeriesEnd() {
+                m.add(labelsKey(samples.labels), samples);
+            }
+        });
+        return m;
+    }
+
+    // servers write labels sorted, so equal label sets give equal keys
+    static String labelsKey(List<Label> labels) {
+        StringBuilder b = new StringBuilder();
+        for (Label l : labels) {
+            b.append(l.getName()).append('\u0000').append(l.getValue()).append('\u0000');
+        }
+        return b.toString();
+    }
+
+    private void add(String key, Samples samples) {
+        Samples old = series.get(key);
+        series.put(key, old == null ? samples : old.merge(samples));
+    }
+
+    /**
+     * Samples within [from, to] of every series, series left without samples are dropped.
+     */
+    Matrix slice(long from, long to) {
+        Matrix m = new Matrix();
+        for (Map.Entry<String, Samples> e : series.entrySet()) {
+            Samples s = e.getValue().slice(from, to);
+            if (s.n > 0) {
+                m.series.put(e.getKey(), s);
+            }
+        }
+        return m;
+    }
+
+    /**
+     * A new matrix holding the samples of both, those of other win at equal timestamps.
+     */
+    Matrix merge(Matrix other) {
+        Matrix m = new Matrix();
+        m.series.putAll(series);
+        for (Map.Entry<String, Samples> e : other.series.entrySet()) {
+            m.add(e.getKey(), e.getValue());
+        }
+        return m;
+    }
+
+    /**
+     * Matrices of consecutive, non-overlapping time ranges joined in the given order, in one pass
+     * rather than merging them pairwise.
+     */
+    static Matrix concat(List<Matrix> parts) {
+        Matrix m = new Matrix();
+        for (Matrix part : parts) {
+            for (Map.Entry<String, Samples> e : part.series.entrySet()) {
+                Samples s = m.series.get(e.getKey());
+                if (s == null) {
+                    s = new Samples(e.getValue().labels);
+                    m.series.put(e.getKey(), s);
+                }
+                s.append(e.getValue());
+            }
+        }
+        return m;
+    }
+
+    int estimatedBytes() {
+        int bytes = 64;
+        for (Map.Entry<String, Samples> e : series.entrySet()) {
+            bytes += 64 + 4 * e.getKey().length() + e.getValue().n * 16;
+        }
+        return bytes;
+    }
+
+    QueryResult toQueryResult() {
+        List<ResultSeries> result = new ArrayList<ResultSeries>(series.size());
+        for (Samples s : series.values()) {
+            result.add(s.toResultSeries());
+        }
+        return new QueryResult(QueryResult.Type.MATRIX, result);
+    }
+
+    // sorted by timestamp, never modified once shared by a matrix
+    private static class Samples {
+        private final List<Label> labels;
+        private long[] ts;
+        private double[] vs;
+        private int n;
+
+        private Samples(List<Label> labels) {
+            this(labels, new long[8], new double[8], 0);
+        }
+
+        private Samples(List<Label> labels, long[] ts, double[] vs, int n) {
+            this.labels = labels;
+            this.ts = ts;
+            this.vs = vs;
+            this.n = n;
+        }
+
+        private void add(long t, double v) {
+            if (n == ts.length) {
+                ts = Arrays.copyOf(ts, Math.max(n * 2, 8));
+                vs = Arrays.copyOf(vs, Math.max(n * 2, 8));
+            }
+            ts[n] = t;
+            vs[n] = v;
+            n++;
+        }
+
+        // samples not after the last one already held are dropped
+        private void append(Samples other) {
+            for (int i = 0; i < other.n; i++) {
+                if (n == 0 || other.ts[i] > ts[n - 1]) {
+                    add(other.ts[i], other.vs[i]);
+                }
+            }
+        }
+
+        private Samples slice(long from, long to) {
+            Samples s = new Samples(labels);
+            for (int i = 0; i < n; i++) {
+                if (ts[i] >= from && ts[i] <= to) {
+                    s.add(ts[i], vs[i]);
+                }
+            }
+            return s;
+        }
+
+        private Samples merge(Samples other) {
+            Samples s = new Samples(labels, new long[n + other.n], new double[n + other.n], 0);
+            int i = 0, j = 0;
+            while (i < n || j < other.n) {
+                if (j == other.n || (i < n && ts[i] < other.ts[j])) {
+                    s.add(ts[i], vs[i]);
+                    i++;
+                } else {
+                    if (i < n && ts[i] == other.ts[j]) {
+                        i++;
+                    }
+                    s.add(other.ts[j], other.vs[j]);
+                    j++;
+                }
+            }
+            return s;
+        }
+
+        // copied, the arrays of a result may be changed by its user while these stay cached
+        private ResultSeries toResultSeries() {
+            return new ResultSeries(labels, Arrays.copyOf(ts, n), Arrays.copyOf(vs, n));
+        }
+    }
+}
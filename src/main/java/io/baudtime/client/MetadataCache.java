@@ -0,0 +1,371 @@
+/*
+ * Copyright 2019 The Baudtime Authors
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.baudtime.client;
+
+import io.baudtime.client.netty.ClientRuntime;
+import io.baudtime.client.netty.Future;
+import io.baudtime.client.netty.FutureListener;
+import io.baudtime.client.netty.TcpClient;
+import io.baudtime.message.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Label values and series labels kept in LRU order, answered from the cache while fresh and, once stale,
+ * still answered while a refresh runs in the background on the client's scheduler.
+ * Names and values repeat a lot across entries, so every string is held once in a reference counted pool
+ * and the byte bound counts each distinct string a single time.
+ */
+class MetadataCache {
+    private static final Logger log = LoggerFactory.getLogger(MetadataCache.class);
+
+    private final TcpClient tcpClient;
+    private final ClientRuntime runtime;
+    private final long maxBytes;
+    private final long ttlMillis;
+    private final long staleMillis;
+    private final long windowMillis;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final Map<String, Pooled> strings = new HashMap<String, Pooled>();
+    private long bytes;
+
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+
+    MetadataCache(TcpClient tcpClient, ClientConfig clientConfig, ClientRuntime runtime) {
+        this.tcpClient = tcpClient;
+        this.runtime = runtime;
+        this.maxBytes = clientConfig.getMetadataCacheMaxBytes();
+        this.ttlMillis = clientConfig.getMetadataCacheTtlMillis();
+        this.staleMillis = clientConfig.getMetadataCacheStaleMillis();
+        this.windowMillis = clientConfig.getMetadataCacheWindowMillis();
+    }
+
+    // start down and end up to the window, the server answers for a slightly wider range than asked
+    Date alignStart(Date start) {
+        return start == null ? null : new Date(start.getTime() - start.getTime() % windowMillis);
+    }
+
+    Date alignEnd(Date end) {
+        if (end == null || end.getTime() % windowMillis == 0) {
+            return end;
+        }
+        return new Date(end.getTime() - end.getTime() % windowMillis + windowMillis);
+    }
+
+    static String labelValuesKey(String name, Collection<String> matches, Date start, Date end) {
+        return "v|" + name + "|" + timeKey(start, end) + "|" + matchesKey(matches);
+    }
+
+    static String seriesLabelsKey(Collection<String> matches, Date start, Date end) {
+        return "s|" + timeKey(start, end) + "|" + matchesKey(matches);
+    }
+
+    private static String timeKey(Date start, Date end) {
+        return (start == null ? "-" : String.valueOf(start.getTime())) + "|" + (end == null ? "-" : String.valueOf(end.getTime()));
+    }
+
+    // the order of matchers does not change the answer
+    private static String matchesKey(Collection<String> matches) {
+        if (matches == null) {
+            return "";
+        }
+        List<String> normalized = new ArrayList<String>(matches.size());
+        for (String m : matches) {
+            normalized.add(QueryCache.normalize(m));
+        }
+        Collections.sort(normalized);
+
+        StringBuilder b = new StringBuilder();
+        for (String m : normalized) {
+            b.append(m).append('\0');
+        }
+        return b.toString();
+    }
+
+    BaudMessage get(String key, BaudMessage request, long timeout, TimeUnit unit) {
+        Entry e = lookup(key);
+        if (e != null) {
+            if (System.currentTimeMillis() - e.freshUntil >= 0) {
+                refresh(key, request, timeout, unit);
+            }
+            return e.response;
+        }
+
+        Flight flight = new Flight();
+        Flight running = flights.putIfAbsent(key, flight);
+        if (running != null) {
+            return running.await(timeout, unit);
+        }
+
+        try {
+            BaudMessage response = tcpClient.query(request, timeout, unit);
+            response = store(key, response);
+            flight.done(response, null);
+            return response;
+        } catch (RuntimeException ex) {
+            flight.done(null, ex);
+            throw ex;
+        } finally {
+            flights.remove(key, flight);
+        }
+    }
+
+    // at most one refresh per key, the request is only written by the scheduler and the response stored by whoever completes it
+    private void refresh(final String key, final BaudMessage request, final long timeout, final TimeUnit unit) {
+        final Flight flight = new Flight();
+        if (flights.putIfAbsent(key, flight) != null) {
+            return;
+        }
+
+        try {
+            runtime.scheduler().execute(new Runnable() {
+                @Override
+                public void run() {
+                    Future f;
+                    try {
+                        f = tcpClient.asyncQuery(request, timeout, unit);
+                    } catch (RuntimeException e) {
+                        refreshed(key, flight, null, e);
+                        return;
+                    }
+
+                    f.addListener(new FutureListener() {
+                        @Override
+                        public void onFinished(Future f) {
+                            refreshed(key, flight, f.getResponse(), f.getCause());
+                        }
+                    });
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            refreshed(key, flight, null, e);
+        }
+    }
+
+    private void refreshed(String key, Flight flight, BaudMessage response, Throwable cause) {
+        try {
+            if (cause != null) {
+                log.warn("failed to refresh {}, {}", key, cause.getMessage());
+                flight.done(null, new RuntimeException(cause));
+            } else {
+                flight.done(store(key, response), null);
+            }
+        } catch (RuntimeException e) {
+            flight.done(null, e);
+        } finally {
+            flights.remove(key, flight);
+        }
+    }
+
+    private synchronized Entry lookup(String key) {
+        Entry e = entries.get(key);
+        if (e == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - e.staleUntil >= 0) {
+            remove(key);
+            return null;
+        }
+        return e;
+    }
+
+    // successful responses are rebuilt on pooled strings, the copy is what callers get from then on
+    private synchronized BaudMessage store(String key, BaudMessage response) {
+        Entry e;
+        if (response instanceof LabelValuesResponse && ((LabelValuesResponse) response).getStatus() == StatusCode.Succeed) {
+            if (maxSize((LabelValuesResponse) response) > maxBytes) {
+                return response;
+            }
+            e = pool((LabelValuesResponse) response);
+        } else if (response instanceof SeriesLabelsResponse && ((SeriesLabelsResponse) response).getStatus() == StatusCode.Succeed) {
+            if (maxSize((SeriesLabelsResponse) response) > maxBytes) {
+                return response;
+            }
+            e = pool((SeriesLabelsResponse) response);
+        } else {
+            return response;
+        }
+
+        remove(key);
+        entries.put(key, e);
+        bytes += e.size;
+
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            Entry old = it.next().getValue();
+            it.remove();
+            release(old);
+        }
+        return e.response;
+    }
+
+    private Entry pool(LabelValuesResponse response) {
+        List<String> values = response.getValues();
+        String[] pooled = new String[values.size()];
+        for (int i = 0; i < pooled.length; i++) {
+            pooled[i] = intern(values.get(i));
+        }
+
+        LabelValuesResponse copy = new LabelValuesResponse(Collections.unmodifiableList(Arrays.asList(pooled)), response.getStatus(), response.getErrorMsg());
+        return newEntry(copy, pooled, 64 + 8 * pooled.length);
+    }
+
+    private Entry pool(SeriesLabelsResponse response) {
+        List<List<Label>> labels = response.getLabels();
+        List<String> pooled = new ArrayList<String>();
+        List<List<Label>> series = new ArrayList<List<Label>>(labels.size());
+        int size = 64;
+        for (List<Label> ls : labels) {
+            Label[] copy = new Label[ls.size()];
+            for (int i = 0; i < copy.length; i++) {
+                String name = intern(ls.get(i).getName());
+                String value = intern(ls.get(i).getValue());
+                pooled.add(name);
+                pooled.add(value);
+                copy[i] = new Label(name, value);
+            }
+            series.add(Collections.unmodifiableList(Arrays.asList(copy)));
+            size += 32 + 32 * copy.length;
+        }
+
+        SeriesLabelsResponse copy = new SeriesLabelsResponse(Collections.unmodifiableList(series), response.getStatus(), response.getErrorMsg());
+        return newEntry(copy, pooled.toArray(new String[0]), size);
+    }
+
+    // as if none of its strings were pooled yet
+    private static long maxSize(LabelValuesResponse response) {
+        long size = 64;
+        for (String v : response.getValues()) {
+            size += 8 + (v == null ? 0 : sizeOf(v));
+        }
+        return size;
+    }
+
+    private static long maxSize(SeriesLabelsResponse response) {
+        long size = 64;
+        for (List<Label> ls : response.getLabels()) {
+            size += 32;
+            for (Label l : ls) {
+                size += 32 + (l.getName() == null ? 0 : sizeOf(l.getName())) + (l.getValue() == null ? 0 : sizeOf(l.getValue()));
+            }
+        }
+        return size;
+    }
+
+    private Entry newEntry(BaudMessage response, String[] pooled, int size) {
+        long now = System.currentTimeMillis();
+        return new Entry(response, pooled, size, now + ttlMillis, now + ttlMillis + staleMillis);
+    }
+
+    private String intern(String s) {
+        if (s == null) {
+            return null;
+        }
+        Pooled p = strings.get(s);
+        if (p == null) {
+            p = new Pooled(s);
+            strings.put(s, p);
+            bytes += sizeOf(s);
+        }
+        p.refs++;
+        return p.s;
+    }
+
+    private void remove(String key) {
+        Entry old = entries.remove(key);
+        if (old != null) {
+            release(old);
+        }
+    }
+
+    private void release(Entry e) {
+        bytes -= e.size;
+        for (String s : e.pooled) {
+            if (s == null) {
+                continue;
+            }
+            Pooled p = strings.get(s);
+            if (--p.refs == 0) {
+                strings.remove(s);
+                bytes -= sizeOf(s);
+            }
+        }
+    }
+
+    private static int sizeOf(String s) {
+        return 88 + 2 * s.length();
+    }
+
+    private static class Pooled {
+        private final String s;
+        private int refs;
+
+        private Pooled(String s) {
+            this.s = s;
+        }
+    }
+
+    private static class Entry {
+        private final BaudMessage response;
+        private final String[] pooled;
+        private final int size;
+        private final long freshUntil;
+        private final long staleUntil;
+
+        private Entry(BaudMessage response, String[] pooled, int size, long freshUntil, long staleUntil) {
+            this.response = response;
+            this.pooled = pooled;
+            this.size = size;
+            this.freshUntil = freshUntil;
+            this.staleUntil = staleUntil;
+        }
+    }
+
+    private static class Flight {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile BaudMessage response;
+        private volatile RuntimeException cause;
+
+        private void done(BaudMessage response, RuntimeException cause) {
+            this.response = response;
+            this.cause = cause;
+            done.countDown();
+        }
+
+        private BaudMessage await(long timeout, TimeUnit unit) {
+            try {
+                if (!done.await(timeout, unit)) {
+                    throw new RuntimeException("response timed out");
+                }
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            if (cause != null) {
+                throw cause;
+            }
+            return response;
+        }
+    }
+}
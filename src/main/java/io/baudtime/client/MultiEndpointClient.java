@@ -15,14 +15,14 @@
 
 package io.baudtime.client;
 
-import io.baudtime.message.LabelValuesResponse;
-import io.baudtime.message.QueryResponse;
-import io.baudtime.message.Series;
-import io.baudtime.message.SeriesLabelsResponse;
+import io.baudtime.client.netty.EncodedAddRequest;
+import io.baudtime.client.netty.Future;
+import io.baudtime.client.netty.FutureListener;
+import io.baudtime.message.*;
 
-import java.util.Collection;
-import java.util.Date;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -91,6 +91,12 @@ public class MultiEndpointClient implements Client {
         current.write(series);
     }
 
+    @Override
+    public void write(Collection<Series> series, WriteMode mode) {
+        checkCurrentSelect();
+        current.write(series, mode);
+    }
+
     public QueryResponse instantQuery(String endpoint, String queryExp, Date time, long timeout, TimeUnit unit) {
         return getClient(endpoint).instantQuery(queryExp, time, timeout, unit);
     }
@@ -107,6 +113,96 @@ public class MultiEndpointClient implements Client {
         return getClient(endpoint).labelValues(name, matches, start, end, timeout, unit);
     }
 
+    /**
+     * Queries the endpoints in parallel, all of them if endpoints is null, and merges what came back before the deadline.
+     */
+    public GatheredResponse<String> gatherInstantQuery(Collection<String> endpoints, String queryExp, Date time, long timeout, TimeUnit unit) {
+        return gather(endpoints, BaudClient.instantQueryRequest(queryExp, time, timeout, unit), timeout, unit, ResponseMerger.query());
+    }
+
+    public GatheredResponse<List<List<Label>>> gatherSeriesLabels(Collection<String> endpoints, Collection<String> matches, Date start, Date end, long timeout, TimeUnit unit) {
+        return gather(endpoints, BaudClient.seriesLabelsRequest(matches, start, end, timeout, unit), timeout, unit, ResponseMerger.seriesLabels());
+    }
+
+    public GatheredResponse<List<String>> gatherLabelValues(Collection<String> endpoints, String name, Collection<String> matches, Date start, Date end, long timeout, TimeUnit unit) {
+        return gather(endpoints, BaudClient.labelValuesRequest(name, matches, start, end, timeout, unit), timeout, unit, ResponseMerger.labelValues());
+    }
+
+    // responses are merged by whichever thread completes them, those arriving after the deadline are dropped
+    private <R extends BaudMessage, T> GatheredResponse<T> gather(Collection<String> endpoints, BaudMessage request, long timeout, TimeUnit unit,
+                                                                  final ResponseMerger<R, T> merger) {
+        if (endpoints == null) {
+            endpoints = clients.keySet();
+        }
+
+        // all endpoints are checked before anything is sent, so an unknown one leaves no request behind
+        Map<String, BaudClient> targets = new LinkedHashMap<String, BaudClient>();
+        for (String endpoint : endpoints) {
+            targets.put(endpoint, (BaudClient) getClient(endpoint));
+        }
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        final Set<String> succeeded = new HashSet<String>();
+        final Map<String, Throwable> failures = new HashMap<String, Throwable>();
+        final boolean[] closed = new boolean[1];
+        final CountDownLatch latch = new CountDownLatch(targets.size());
+
+        Map<String, Future> futures = new HashMap<String, Future>();
+        for (Map.Entry<String, BaudClient> target : targets.entrySet()) {
+            final String endpoint = target.getKey();
+            BaudClient c = target.getValue();
+            Future f;
+            try {
+                f = c.asyncQuery(request, timeout, unit);
+            } catch (RuntimeException e) {
+                synchronized (merger) {
+                    failures.put(endpoint, e);
+                }
+                latch.countDown();
+                continue;
+            }
+
+            futures.put(endpoint, f);
+            f.addListener(new FutureListener() {
+                @Override
+                @SuppressWarnings("unchecked")
+                public void onFinished(Future f) {
+                    synchronized (merger) {
+                        if (!closed[0]) {
+                            if (f.getCause() != null) {
+                                failures.put(endpoint, f.getCause());
+                            } else {
+                                try {
+                                    merger.merge((R) f.getResponse());
+                                    succeeded.add(endpoint);
+                                } catch (RuntimeException e) {
+                                    failures.put(endpoint, e);
+                                }
+                            }
+                        }
+                    }
+                    latch.countDown();
+                }
+            });
+        }
+
+        try {
+            latch.await(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (Future f : futures.values()) {
+            f.cancel(new RuntimeException("deadline exceeded"));
+        }
+
+        synchronized (merger) {
+            closed[0] = true;
+            return new GatheredResponse<T>(merger.result(), new HashSet<String>(succeeded), new HashMap<String, Throwable>(failures));
+        }
+    }
+
     public void write(String endpoint, Series... series) {
         getClient(endpoint).write(series);
     }
@@ -115,6 +211,50 @@ public class MultiEndpointClient implements Client {
         getClient(endpoint).write(series);
     }
 
+    public void write(String endpoint, Collection<Series> series, WriteMode mode) {
+        getClient(endpoint).write(series, mode);
+    }
+
+    /**
+     * Writes the same series to every endpoint. The request is merged and encoded once, each endpoint sends
+     * the whole batch to one of its servers and acks on its own future, a failing endpoint does not stop the others.
+     * The merging is counted in the merge stats of the endpoint that encoded the request.
+     */
+    public Map<String, Future> broadcast(Collection<Series> series, WriteMode mode) {
+        if (series == null || series.size() <= 0) {
+            throw new RuntimeException("some series should be provided");
+        }
+
+        Map<String, Client> targets = new LinkedHashMap<String, Client>(clients);
+        Map<String, Future> acks = new HashMap<String, Future>();
+        if (targets.isEmpty()) {
+            return acks;
+        }
+        EncodedAddRequest request = ((BaudClient) targets.values().iterator().next()).encode(series, mode);
+
+        try {
+            for (Map.Entry<String, Client> e : targets.entrySet()) {
+                Future f;
+                try {
+                    f = ((BaudClient) e.getValue()).write(request);
+                } catch (RuntimeException ex) {
+                    f = new Future(-1).setSendRequestOK(false).setCause(ex).finish();
+                }
+                acks.put(e.getKey(), f);
+            }
+        } finally {
+            request.release();
+        }
+        return acks;
+    }
+
+    /**
+     * Writes the same series to every endpoint in the write mode configured for them.
+     */
+    public Map<String, Future> broadcast(Collection<Series> series) {
+        return broadcast(series, null);
+    }
+
     @Override
     public void close() {
         if (closed.compareAndSet(false, true)) {
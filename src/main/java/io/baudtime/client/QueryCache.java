@@ -0,0 +1,216 @@
+/*
+ * Copyright 2019 The Baudtime Authors
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.baudtime.client;
+
+import io.baudtime.message.QueryResponse;
+import io.baudtime.message.StatusCode;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Successful query responses kept in LRU order until their TTL passes or they are pushed out by the byte bound.
+ * Concurrent misses of the same key wait for the one request already on its way instead of sending their own.
+ */
+class QueryCache {
+    // samples of the last minutes may still be arriving, results covering them are only kept for the recent ttl
+    static final long RECENT_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    interface Loader {
+        QueryResponse load();
+    }
+
+    private final long maxBytes;
+    private final long ttlMillis;
+    private final long recentTtlMillis;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long bytes;
+
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+
+    QueryCache(ClientConfig clientConfig, long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.ttlMillis = clientConfig.getQueryCacheTtlMillis();
+        this.recentTtlMillis = clientConfig.getQueryCacheRecentTtlMillis();
+    }
+
+    QueryResponse get(String key, long end, long timeout, TimeUnit unit, Loader loader) {
+        QueryResponse cached = lookup(key);
+        if (cached != null) {
+            // the cached response stays bytes only, whatever a caller turns its copy into
+            return cached.copy();
+        }
+
+        Flight flight = new Flight();
+        Flight running = flights.putIfAbsent(key, flight);
+        if (running != null) {
+            return running.await(timeout, unit);
+        }
+
+        QueryResponse response = null;
+        RuntimeException cause = null;
+        boolean loaded = false;
+        try {
+            response = loader.load();
+            loaded = true;
+            if (response != null && response.getStatus() == StatusCode.Succeed && response.hasResult()) {
+                boolean recent = end > System.currentTimeMillis() - RECENT_WINDOW_MILLIS;
+                put(key, response.copy(), recent ? recentTtlMillis : ttlMillis);
+            }
+            return response;
+        } catch (RuntimeException e) {
+            cause = e;
+            throw e;
+        } finally {
+            // waiters are released whatever the loader threw
+            if (!loaded && cause == null) {
+                cause = new RuntimeException("query failed");
+            }
+            flight.done(loaded ? response : null, loaded ? null : cause);
+            flights.remove(key, flight);
+        }
+    }
+
+    static String instantKey(String queryExp, Date time) {
+        return "i|" + (time == null ? "now" : String.valueOf(time.getTime())) + "|" + normalize(queryExp);
+    }
+
+    static String rangeKey(String queryExp, long start, long end, long stepMillis) {
+        return "r|" + start + "|" + end + "|" + stepMillis + "|" + normalize(queryExp);
+    }
+
+    static String extentKey(String queryExp, long stepMillis) {
+        return "x|" + stepMillis + "|" + normalize(queryExp);
+    }
+
+    // collapses whitespace outside string literals, so that differently formatted copies of a query share one entry
+    static String normalize(String queryExp) {
+        StringBuilder b = new StringBuilder(queryExp.length());
+        char quote = 0;
+        boolean space = false;
+        for (int i = 0; i < queryExp.length(); i++) {
+            char c = queryExp.charAt(i);
+            if (quote != 0) {
+                b.append(c);
+                if (c == '\\' && i + 1 < queryExp.length()) {
+                    b.append(queryExp.charAt(++i));
+                } else if (c == quote) {
+                    quote = 0;
+                }
+                continue;
+            }
+            if (Character.isWhitespace(c)) {
+                space = b.length() > 0;
+                continue;
+            }
+            if (space) {
+                b.append(' ');
+                space = false;
+            }
+            if (c == '"' || c == '\'' || c == '`') {
+                quote = c;
+            }
+            b.append(c);
+        }
+        return b.toString();
+    }
+
+    private synchronized QueryResponse lookup(String key) {
+        Entry e = entries.get(key);
+        if (e == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - e.expireAt >= 0) {
+            remove(key);
+            return null;
+        }
+        return e.response;
+    }
+
+    private synchronized void put(String key, QueryResponse response, long ttlMillis) {
+        int size = sizeOf(key, response);
+        if (size > maxBytes) {
+            return;
+        }
+
+        remove(key);
+        entries.put(key, new Entry(response, size, System.currentTimeMillis() + ttlMillis));
+        bytes += size;
+
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            bytes -= it.next().getValue().size;
+            it.remove();
+        }
+    }
+
+    private void remove(String key) {
+        Entry old = entries.remove(key);
+        if (old != null) {
+            bytes -= old.size;
+        }
+    }
+
+    private static int sizeOf(String key, QueryResponse response) {
+        return 2 * key.length() + response.estimatedBytes();
+    }
+
+    private static class Entry {
+        private final QueryResponse response;
+        private final int size;
+        private final long expireAt;
+
+        private Entry(QueryResponse response, int size, long expireAt) {
+            this.response = response;
+            this.size = size;
+            this.expireAt = expireAt;
+        }
+    }
+
+    private static class Flight {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile QueryResponse response;
+        private volatile RuntimeException cause;
+
+        private void done(QueryResponse response, RuntimeException cause) {
+            this.response = response;
+            this.cause = cause;
+            done.countDown();
+        }
+
+        private QueryResponse await(long timeout, TimeUnit unit) {
+            try {
+                if (!done.await(timeout, unit)) {
+                    throw new RuntimeException("response timed out");
+                }
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            if (cause != null) {
+                throw new RuntimeException(cause.getMessage(), cause);
+            }
+            return response;
+        }
+    }
+}
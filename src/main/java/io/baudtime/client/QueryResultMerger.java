@@ -0,0 +1,72 @@
+/*
+ * Copyright 2019 The Baudtime Authors
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.baudtime.client;
+
+import io.baudtime.message.QueryResponse;
+import io.baudtime.message.QueryResult;
+import io.baudtime.message.QueryResultReader;
+import io.baudtime.message.ResultSeries;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Concatenates the vectors or matrices of several query results, a series returned by more than one
+ * endpoint is kept once.
+ */
+class QueryResultMerger {
+    private final List<ResultSeries> series = new ArrayList<ResultSeries>();
+    private final Set<String> keys = new HashSet<String>();
+    private QueryResult.Type resultType;
+    private QueryResult unmergeable;
+
+    void add(QueryResponse response) {
+        QueryResultReader reader = response.resultReader();
+        QueryResult.Type type = reader.type();
+        if (resultType != null && resultType != type) {
+            throw new RuntimeException("result type " + type + " differs from " + resultType);
+        }
+        resultType = type;
+
+        if (type != QueryResult.Type.VECTOR && type != QueryResult.Type.MATRIX) {
+            // scalars and strings have nothing to merge, the first one wins
+            if (unmergeable == null) {
+                unmergeable = reader.readAll();
+            }
+            return;
+        }
+
+        while (reader.hasNext()) {
+            ResultSeries s = reader.next();
+            if (keys.add(Matrix.labelsKey(s.getLabels()))) {
+                series.add(s);
+            }
+        }
+    }
+
+    QueryResult result() {
+        if (resultType == null) {
+            return null;
+        }
+        if (unmergeable != null) {
+            return unmergeable;
+        }
+        return new QueryResult(resultType, series);
+    }
+}
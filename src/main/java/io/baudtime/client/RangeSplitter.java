@@ -0,0 +1,176 @@
+/*
+ * Copyright 2019 The Baudtime Authors
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.baudtime.client;
+
+import io.baudtime.client.netty.Future;
+import io.baudtime.client.netty.FutureListener;
+import io.baudtime.client.netty.TcpClient;
+import io.baudtime.message.BaudMessage;
+import io.baudtime.message.QueryResponse;
+import io.baudtime.message.StatusCode;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a long range query as consecutive sub-queries of at most maxPoints steps each, sent in parallel to
+ * whichever servers the balancer picks, and joins their matrices in time order. Every sub-range starts on
+ * the step grid of the whole query, so the points evaluated are exactly those of a single query.
+ */
+class RangeSplitter {
+    private final int maxPoints;
+    private final int concurrency;
+
+    RangeSplitter(ClientConfig clientConfig) {
+        this.maxPoints = clientConfig.getRangeQuerySplitPoints();
+        this.concurrency = clientConfig.getRangeQuerySplitConcurrency();
+    }
+
+    boolean shouldSplit(Date start, Date end, long stepMillis) {
+        if (start == null || end == null || stepMillis <= 0 || end.before(start)) {
+            return false;
+        }
+        return (end.getTime() - start.getTime()) / stepMillis + 1 > maxPoints;
+    }
+
+    QueryResponse rangeQuery(TcpClient tcpClient, String queryExp, long start, long end, long step, long timeout, TimeUnit unit) {
+        long stepMillis = unit.toMillis(step);
+        long chunkMillis = stepMillis * maxPoints;
+        int n = (int) ((end - start) / chunkMillis + 1);
+        long stepNanos = unit.toNanos(step);
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        final Parts parts = new Parts(n);
+        final Semaphore permits = new Semaphore(concurrency);
+        List<Future> futures = new ArrayList<Future>(n);
+        try {
+            for (int i = 0; i < n && !parts.isDone(); i++) {
+                if (!permits.tryAcquire(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS)) {
+                    throw new RuntimeException("response timed out");
+                }
+                // a part sent late only gets what is left of the timeout of the whole query
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    permits.release();
+                    throw new RuntimeException("response timed out");
+                }
+
+                long from = start + i * chunkMillis;
+                long to = Math.min(from + chunkMillis - stepMillis, end);
+                final int idx = i;
+
+                Future f;
+                try {
+                    f = tcpClient.asyncQuery(BaudClient.rangeQueryRequest(queryExp, new Date(from), new Date(to), stepNanos, remaining, TimeUnit.NANOSECONDS),
+                            remaining, TimeUnit.NANOSECONDS);
+                } catch (RuntimeException e) {
+                    permits.release();
+                    throw e;
+                }
+                futures.add(f);
+                f.addListener(new FutureListener() {
+                    @Override
+                    public void onFinished(Future f) {
+                        try {
+                            parts.set(idx, f);
+                        } finally {
+                            permits.release();
+                        }
+                    }
+                });
+            }
+
+            if (!parts.await(Math.max(deadline - System.nanoTime(), 0))) {
+                throw new RuntimeException("response timed out");
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            // parts still outstanding after a timeout or failure are cancelled rather than left to finish
+            RuntimeException cancelled = new RuntimeException("split range query aborted");
+            for (Future f : futures) {
+                f.cancel(cancelled);
+            }
+        }
+
+        return parts.join();
+    }
+
+    private static class Parts {
+        private final QueryResponse[] responses;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private int remaining;
+        private Throwable cause;
+        private QueryResponse failed;
+
+        private Parts(int n) {
+            this.responses = new QueryResponse[n];
+            this.remaining = n;
+        }
+
+        // the first failure finishes the whole query, the rest is not waited for
+        private synchronized void set(int idx, Future f) {
+            if (isDone()) {
+                return;
+            }
+
+            // a sub-query rejected by the server comes back as a failed general response with the cause set
+            BaudMessage response = f.getResponse();
+            if (f.getCause() != null) {
+                cause = f.getCause();
+            } else if (!(response instanceof QueryResponse)) {
+                cause = new RuntimeException("unexpected response " + response);
+            } else if (((QueryResponse) response).getStatus() != StatusCode.Succeed) {
+                failed = (QueryResponse) response;
+            } else {
+                responses[idx] = (QueryResponse) response;
+                remaining--;
+            }
+
+            if (remaining == 0 || cause != null || failed != null) {
+                done.countDown();
+            }
+        }
+
+        private boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        private boolean await(long nanos) throws InterruptedException {
+            return done.await(nanos, TimeUnit.NANOSECONDS);
+        }
+
+        private synchronized QueryResponse join() {
+            if (cause != null) {
+                throw new RuntimeException(cause);
+            }
+            if (failed != null) {
+                return failed;
+            }
+
+            List<Matrix> matrices = new ArrayList<Matrix>(responses.length);
+            for (QueryResponse r : responses) {
+                matrices.add(Matrix.parse(r));
+            }
+            return new QueryResponse(Matrix.concat(matrices).toQueryResult(), StatusCode.Succeed, "");
+        }
+    }
+}
@@ -104,6 +104,11 @@ public class RecordsAdaptor<Raw extends Client, Records> implements Client {
         client.write(series);
     }
 
+    @Override
+    public void write(Collection<Series> series, WriteMode mode) {
+        client.write(series, mode);
+    }
+
     public void write(final Records records) throws InterruptedException {
         if (client.isClosed()) {
             this.close();
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2019 The Baudtime Authors
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.baudtime.client;
+
+import io.baudtime.message.*;
+
+import java.util.*;
+
+/**
+ * Folds the responses of several endpoints into one result as they arrive, calls are serialized by the caller.
+ */
+abstract class ResponseMerger<R extends BaudMessage, T> {
+
+    abstract void merge(R response);
+
+    abstract T result();
+
+    static void checkStatus(StatusCode status, String errorMsg) {
+        if (status == StatusCode.Failed) {
+            throw new RuntimeException(errorMsg);
+        }
+    }
+
+    static ResponseMerger<LabelValuesResponse, List<String>> labelValues() {
+        return new ResponseMerger<LabelValuesResponse, List<String>>() {
+            private final TreeSet<String> values = new TreeSet<String>();
+
+            @Override
+            void merge(LabelValuesResponse response) {
+                checkStatus(response.getStatus(), response.getErrorMsg());
+                values.addAll(response.getValues());
+            }
+
+            @Override
+            List<String> result() {
+                return new ArrayList<String>(values);
+            }
+        };
+    }
+
+    static ResponseMerger<SeriesLabelsResponse, List<List<Label>>> seriesLabels() {
+        return new ResponseMerger<SeriesLabelsResponse, List<List<Label>>>() {
+            private final Map<String, List<Label>> labelSets = new LinkedHashMap<String, List<Label>>();
+            private final StringBuilder key = new StringBuilder();
+
+            @Override
+            void merge(SeriesLabelsResponse response) {
+                checkStatus(response.getStatus(), response.getErrorMsg());
+                for (List<Label> labels : response.getLabels()) {
+                    key.setLength(0);
+                    for (Label l : labels) {
+                        key.append(l.getName()).append('\u0000').append(l.getValue()).append('\u0000');
+                    }
+                    String k = key.toString();
+                    if (!labelSets.containsKey(k)) {
+                        labelSets.put(k, labels);
+                    }
+                }
+            }
+
+            @Override
+            List<List<Label>> result() {
+                return new ArrayList<List<Label>>(labelSets.values());
+            }
+        };
+    }
+
+    static ResponseMerger<QueryResponse, String> query() {
+        return new ResponseMerger<QueryResponse, String>() {
+            private final QueryResultMerger merger = new QueryResultMerger();
+
+            @Override
+            void merge(QueryResponse response) {
+                checkStatus(response.getStatus(), response.getErrorMsg());
+                merger.add(response);
+            }
+
+            @Override
+            String result() {
+                QueryResult result = merger.result();
+                return result == null ? null : result.toJson();
+            }
+        };
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright 2019 The Baudtime Authors
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.baudtime.client;
+
+public enum WriteMode {
+    /**
+     * Series with the same labels in one write are merged into one before encoding.
+     */
+    MERGE,
+    /**
+     * The caller guarantees every series of a write is unique, series are encoded as they are.
+     * Sticky clients still merge since their batches are made of many writes.
+     */
+    AS_IS
+}
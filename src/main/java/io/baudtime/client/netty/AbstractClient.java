@@ -16,46 +16,68 @@
 package io.baudtime.client.netty;
 
 import io.baudtime.client.ClientConfig;
+import io.baudtime.client.WriteMode;
+import io.baudtime.discovery.ServiceAddrDiffObserver;
 import io.baudtime.discovery.ServiceAddrProvider;
+import io.baudtime.message.AddRequest;
 import io.baudtime.message.BaudMessage;
+import io.baudtime.message.InstantQueryRequest;
+import io.baudtime.message.RangeQueryRequest;
+import io.baudtime.message.Series;
 import io.baudtime.util.ConcurrentReferenceHashMap;
 import io.baudtime.util.Util;
 import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.*;
-import io.netty.channel.epoll.EpollEventLoopGroup;
-import io.netty.channel.epoll.EpollSocketChannel;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.pool.*;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.flush.FlushConsolidationHandler;
 import io.netty.handler.timeout.IdleStateEvent;
 import io.netty.handler.timeout.IdleStateHandler;
 import io.netty.handler.traffic.GlobalTrafficShapingHandler;
 import io.netty.util.AttributeKey;
-
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.GenericFutureListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 public abstract class AbstractClient implements TcpClient {
+    private static final Logger log = LoggerFactory.getLogger(AbstractClient.class);
 
     private static final AttributeKey<String> addrKey = AttributeKey.valueOf("addr");
+    private static final AttributeKey<FixedChannelPool> poolKey = AttributeKey.valueOf("pool");
 
     private final AtomicLong opaque = new AtomicLong(0);
 
     protected final ServiceAddrProvider serviceAddrProvider;
     private final ResponseHandler responseHandler;
     private final FutureListener writeResponseHook;
+    private final FutureListener releaseHook;
+    private final Hedger hedger;
+    private final Random random = new Random();
+    private final long writeTimeoutNanos;
 
-    private final EventLoopGroup eventLoopGroup;
-    private final ChannelPoolMap<String /* addr */, FixedChannelPool> poolMap;
+    private final ClientRuntime runtime;
+    private final AbstractChannelPoolMap<String /* addr */, FixedChannelPool> poolMap;
 
     private final ConcurrentMap<ChannelId, FlowControlBarrier> barriers = new ConcurrentReferenceHashMap<ChannelId, FlowControlBarrier>();
 
     private final ClientConfig clientConfig;
+    private final MergeStats mergeStats = new MergeStats();
+
+    protected AbstractClient(ClientConfig clientConfig, ServiceAddrProvider serviceAddrProvider, FutureListener writeResponseHook) {
+        this(clientConfig, null, serviceAddrProvider, writeResponseHook);
+    }
 
-    protected AbstractClient(final ClientConfig clientConfig, ServiceAddrProvider serviceAddrProvider, final FutureListener writeResponseHook) {
+    /**
+     * @param runtime shared with other clients if not null, otherwise the client creates its own
+     */
+    protected AbstractClient(final ClientConfig clientConfig, ClientRuntime runtime, ServiceAddrProvider serviceAddrProvider, final FutureListener writeResponseHook) {
         this.clientConfig = clientConfig;
         this.responseHandler = new ResponseHandler();
         this.writeResponseHook = new FutureListener() {
@@ -68,17 +90,21 @@ public abstract class AbstractClient implements TcpClient {
             }
         };
 
-        final Class<? extends Channel> channelClass;
-        if (Util.OS.isLinux()) {
-            this.eventLoopGroup = new EpollEventLoopGroup();
-            channelClass = EpollSocketChannel.class;
-        } else {
-            this.eventLoopGroup = new NioEventLoopGroup();
-            channelClass = NioSocketChannel.class;
-        }
+        this.releaseHook = new FutureListener() {
+            @Override
+            public void onFinished(Future f) {
+                responseHandler.releaseFuture(f);
+            }
+        };
+
+        this.hedger = clientConfig.isHedgeQueries() ? new Hedger(clientConfig) : null;
+        this.writeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(clientConfig.getWriteTimeoutMillis());
+
+        this.runtime = runtime == null ? ClientRuntime.create(clientConfig) : runtime.retain();
+        final Transport transport = this.runtime.transport();
 
         final GlobalTrafficShapingHandler trafficShapingHandler = (clientConfig.getReadFlowControlLimit() > 0 || clientConfig.getWriteFlowControlLimit() > 0) ?
-                new GlobalTrafficShapingHandler(Executors.newScheduledThreadPool(3),
+                new GlobalTrafficShapingHandler(this.runtime.scheduler(),
                         clientConfig.getWriteFlowControlLimit(), clientConfig.getReadFlowControlLimit(), 500) : null;
         if (trafficShapingHandler != null && clientConfig.getWriteFlowControlLimit() > 0) {
             trafficShapingHandler.setMaxGlobalWriteSize(clientConfig.getWriteFlowControlLimit() + clientConfig.getWriteFlowControlLimit() / 10);
@@ -141,8 +167,9 @@ public abstract class AbstractClient implements TcpClient {
                 }
 
                 Bootstrap bootstrap = new Bootstrap()
-                        .group(eventLoopGroup)
-                        .channel(channelClass)
+                        .group(transport.eventLoopGroup())
+                        .channel(transport.channelClass())
+                        .option(ChannelOption.ALLOCATOR, AbstractClient.this.runtime.allocator())
                         .option(ChannelOption.TCP_NODELAY, true)
                         .option(ChannelOption.SO_KEEPALIVE, true)
                         .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, clientConfig.getConnectTimeoutMillis())
@@ -150,6 +177,7 @@ public abstract class AbstractClient implements TcpClient {
                         .option(ChannelOption.SO_RCVBUF, clientConfig.getSocketRcvBufSize())
                         .option(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(clientConfig.getWriteBufLowWaterMark(), clientConfig.getWriteBufHighWaterMark()))
                         .remoteAddress(s[0], Integer.parseInt(s[1]));
+                transport.configure(bootstrap, clientConfig);
 
                 return new FixedChannelPool(bootstrap, channelPoolHandler, ChannelHealthChecker.ACTIVE,
                         FixedChannelPool.AcquireTimeoutAction.FAIL, clientConfig.getConnectTimeoutMillis(),
@@ -158,59 +186,381 @@ public abstract class AbstractClient implements TcpClient {
         };
 
         this.serviceAddrProvider = serviceAddrProvider;
-        this.serviceAddrProvider.watch();
+        this.serviceAddrProvider.setHealthChecker(new NettyHealthChecker(transport.eventLoopGroup(), transport.channelClass(),
+                        clientConfig.getHealthCheckTimeoutMillis(), clientConfig.isHealthCheckPing(), clientConfig.getMaxResponseFrameLength()),
+                clientConfig.getHealthCheckDownThreshold(), clientConfig.getHealthCheckUpThreshold());
+        this.serviceAddrProvider.addObserver(new ServiceAddrDiffObserver() {
+            @Override
+            public void addrChanged() {
+                syncPools();
+            }
+
+            @Override
+            public void addrsChanged(final Set<String> added, final Set<String> removed) {
+                submitPoolTask(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (String addr : removed) {
+                            evict(addr);
+                        }
+                        for (String addr : added) {
+                            warmUp(addr);
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void addrDown(String addr) {
+            }
+
+            @Override
+            public void addrRecover(final String addr) {
+                submitPoolTask(new Runnable() {
+                    @Override
+                    public void run() {
+                        warmUp(addr);
+                    }
+                });
+            }
+        });
+        this.serviceAddrProvider.watch(this.runtime.scheduler());
+
+        syncPools();
+    }
+
+    @Override
+    public void append(Collection<Series> series) {
+        append(series, clientConfig.getWriteMode());
+    }
+
+    @Override
+    public MergeStats mergeStats() {
+        return mergeStats;
     }
 
     public BaudMessage query(BaudMessage request, long timeout, TimeUnit unit) {
+        if (hedger != null && (request instanceof InstantQueryRequest || request instanceof RangeQueryRequest)) {
+            return hedgedQuery(request, timeout, unit);
+        }
+
+        Future f = asyncQuery(request, timeout, unit);
+        try {
+            return f.await(timeout, unit);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            responseHandler.releaseFuture(f);
+        }
+    }
+
+    /**
+     * The channel goes back to the pool as soon as the request is written, responses are matched by opaque,
+     * so a slow query does not hold a connection others could write to.
+     */
+    @Override
+    public Future asyncQuery(BaudMessage request, long timeout, TimeUnit unit) {
+        String addr = serviceAddrProvider.getServiceAddr();
+        if (addr == null) {
+            throw new RuntimeException("no server was found");
+        }
+        return asyncQuery(addr, request, unit.toNanos(timeout));
+    }
+
+    protected Future asyncQuery(String addr, BaudMessage request, long timeoutNanos) {
         Channel ch = null;
         try {
-            ch = getChannel();
-            return syncRequest(ch, request, timeout, unit);
+            ch = getChannel(addr);
+            ensureWritable(ch);
+
+            Message tcpMsg = new Message(opaque.getAndIncrement(), request);
+            Future f = newFuture(ch, new Future(tcpMsg)).addListener(releaseHook);
+            return send(ch, tcpMsg, f, true, timeoutNanos);
         } finally {
             putChannel(ch);
         }
     }
 
-    public void close() {
-        this.serviceAddrProvider.stopWatch();
-        this.eventLoopGroup.shutdownGracefully();
+    /**
+     * Pipelines all the requests on one channel with a single flush and waits for their responses,
+     * which come back in request order. Fails as a whole if any of them fails or the timeout passes.
+     */
+    @Override
+    public List<BaudMessage> batchQuery(List<? extends BaudMessage> requests, long timeout, TimeUnit unit) {
+        if (requests.isEmpty()) {
+            return new ArrayList<BaudMessage>(0);
+        }
+
+        String addr = serviceAddrProvider.getServiceAddr();
+        if (addr == null) {
+            throw new RuntimeException("no server was found");
+        }
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        List<Future> futures = asyncQueries(addr, requests, unit.toNanos(timeout));
+        try {
+            List<BaudMessage> responses = new ArrayList<BaudMessage>(futures.size());
+            for (Future f : futures) {
+                BaudMessage response = f.await(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+                if (f.getCause() != null) {
+                    throw new RuntimeException(f.getCause());
+                }
+                responses.add(response);
+            }
+            return responses;
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } finally {
+            RuntimeException aborted = new RuntimeException("batch query aborted");
+            for (Future f : futures) {
+                f.cancel(aborted);
+            }
+        }
     }
 
-    protected BaudMessage syncRequest(Channel ch, BaudMessage request, long timeout, TimeUnit unit) {
-        ensureWritable(ch);
+    protected List<Future> asyncQueries(String addr, List<? extends BaudMessage> requests, long timeoutNanos) {
+        Channel ch = null;
+        try {
+            ch = getChannel(addr);
+            ensureWritable(ch);
 
-        Message tcpMsg = new Message(opaque.getAndIncrement(), request);
+            List<Future> futures = new ArrayList<Future>(requests.size());
+            for (BaudMessage request : requests) {
+                Message tcpMsg = new Message(opaque.getAndIncrement(), request);
+
+                Future f = newFuture(ch, new Future(tcpMsg)).addListener(releaseHook);
+                futures.add(send(ch, tcpMsg, f, false, timeoutNanos));
+            }
+            ch.flush();
+            return futures;
+        } finally {
+            putChannel(ch);
+        }
+    }
+
+    // a query still unanswered after the hedge delay goes to another address too, the first success wins
+    private BaudMessage hedgedQuery(BaudMessage request, long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        hedger.onQuery();
 
-        Future f = new Future(tcpMsg);
-        responseHandler.registerFuture(f);
+        String addr = serviceAddrProvider.getServiceAddr();
+        if (addr == null) {
+            throw new RuntimeException("no server was found");
+        }
 
+        Race race = new Race();
+        Future primary = recordLatency(addr, asyncQuery(addr, request, deadline - System.nanoTime())).addListener(race);
+        Future hedge = null;
         try {
-            ch.writeAndFlush(tcpMsg).addListener(f);
-            return f.await(timeout, unit);
+            long delay = hedger.delayNanos(addr);
+            if (delay > 0 && delay < deadline - System.nanoTime() && !race.awaitAny(delay)) {
+                String other = otherAddr(addr);
+                if (other != null && hedger.tryAcquire()) {
+                    try {
+                        hedge = recordLatency(other, asyncQuery(other, request, deadline - System.nanoTime())).addListener(race);
+                    } catch (RuntimeException e) {
+                        log.warn("failed to hedge query to {}, {}", other, e.getMessage());
+                    }
+                }
+            }
+
+            Future f = race.awaitResult(deadline - System.nanoTime(), hedge == null ? 1 : 2);
+            if (f == null) {
+                throw new RuntimeException("response timed out");
+            }
+            return f.getResponse();
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
         } finally {
-            responseHandler.releaseFuture(f);
+            // the server keeps working on the loser, its response is dropped when it comes
+            RuntimeException lost = new RuntimeException("hedged query lost");
+            primary.cancel(lost);
+            if (hedge != null) {
+                hedge.cancel(lost);
+            }
         }
     }
 
+    private Future recordLatency(final String addr, Future f) {
+        return f.addListener(new FutureListener() {
+            @Override
+            public void onFinished(Future f) {
+                if (f.getCause() == null) {
+                    hedger.record(addr, f.elapsedNanos());
+                }
+            }
+        });
+    }
+
+    private String otherAddr(String addr) {
+        List<String> others = new ArrayList<String>(serviceAddrProvider.healthyAddress());
+        others.remove(addr);
+        return others.isEmpty() ? null : others.get(random.nextInt(others.size()));
+    }
+
+    private static class Race implements FutureListener {
+        private int finished;
+        private Future winner;
+        private Future lastFailed;
+
+        @Override
+        public synchronized void onFinished(Future f) {
+            finished++;
+            if (f.getCause() == null && winner == null) {
+                winner = f;
+            } else {
+                lastFailed = f;
+            }
+            notifyAll();
+        }
+
+        private synchronized boolean awaitAny(long nanos) throws InterruptedException {
+            long deadline = System.nanoTime() + nanos;
+            while (finished == 0 && nanos > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, nanos);
+                nanos = deadline - System.nanoTime();
+            }
+            return finished > 0;
+        }
+
+        // the first success, or the last failure once all the sent queries failed, null on timeout
+        private synchronized Future awaitResult(long nanos, int sent) throws InterruptedException {
+            long deadline = System.nanoTime() + nanos;
+            while (winner == null && finished < sent && nanos > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, nanos);
+                nanos = deadline - System.nanoTime();
+            }
+            if (winner != null) {
+                return winner;
+            }
+            return finished >= sent ? lastFailed : null;
+        }
+    }
+
+    @Override
+    public EncodedAddRequest encode(Collection<Series> series) {
+        return encode(series, clientConfig.getWriteMode());
+    }
+
+    /**
+     * Builds a request to be sent as it is by append(EncodedAddRequest), merged as the mode says and counted in the merge stats.
+     */
+    @Override
+    public EncodedAddRequest encode(Collection<Series> series, WriteMode mode) {
+        AddRequest.Builder builder = mode == WriteMode.MERGE ? AddRequest.newBuilder(series.size()) : new AddRequest.Builder(series.size());
+        return EncodedAddRequest.encode(buildRequest(builder.addSeries(series)));
+    }
+
+    /**
+     * Sends the whole pre-encoded request to one server picked by the provider, whatever the routing of the client.
+     */
+    @Override
+    public Future append(EncodedAddRequest request) {
+        Channel ch = null;
+        try {
+            ch = getChannel();
+            return asyncRequest(ch, request);
+        } finally {
+            putChannel(ch);
+        }
+    }
+
+    public void close() {
+        this.serviceAddrProvider.stopWatch();
+        this.runtime.release();
+    }
+
     protected void asyncRequest(Channel ch, BaudMessage request) {
         ensureWritable(ch);
 
         Message tcpMsg = new Message(opaque.getAndIncrement(), request);
 
-        Future f = new Future(tcpMsg).addListener(writeResponseHook);
-        responseHandler.registerFuture(f);
+        Future f = newFuture(ch, new Future(tcpMsg)).addListener(writeResponseHook);
+        send(ch, tcpMsg, f, clientConfig.isFlushChannelOnEachWrite(), writeTimeoutNanos);
+
+        if (!clientConfig.isFlushChannelOnEachWrite() && !ch.isWritable() && ch.isOpen()) {
+            ch.flush();
+        }
+    }
+
+    // only the frame header is written here, the body is a retained duplicate of the shared one
+    protected Future asyncRequest(Channel ch, EncodedAddRequest request) {
+        ensureWritable(ch);
+
+        long op = opaque.getAndIncrement();
+        byte[] opaqueBytes = Util.varLongToBytes(op);
 
-        if (clientConfig.isFlushChannelOnEachWrite()) {
-            ch.writeAndFlush(tcpMsg).addListener(f);
-        } else {
-            ch.write(tcpMsg);
+        ByteBuf header = ch.alloc().buffer(4 + 1 + opaqueBytes.length);
+        header.writeBytes(Util.intToFixedLengthBytes(1 + opaqueBytes.length + request.bodyLength()));
+        header.writeByte(0);
+        header.writeBytes(opaqueBytes);
+        ByteBuf frame = ch.alloc().compositeBuffer(2).addComponents(true, header, request.retainedBody());
 
-            if (!ch.isWritable() && ch.isOpen()) {
-                ch.flush();
+        Future f = newFuture(ch, new Future(op)).addListener(writeResponseHook);
+        return send(ch, frame, f, true, writeTimeoutNanos);
+    }
+
+    // the future is always finished, by its response, a failed write, its channel going inactive or the deadline
+    private Future send(Channel ch, Object msg, final Future f, boolean flush, long timeoutNanos) {
+        responseHandler.registerFuture(ch, f);
+
+        final Timeout deadline = runtime.timer().newTimeout(new TimerTask() {
+            @Override
+            public void run(Timeout timeout) {
+                f.cancel(new RuntimeException("response timed out"));
+            }
+        }, Math.max(timeoutNanos, 0), TimeUnit.NANOSECONDS);
+        f.addListener(new FutureListener() {
+            @Override
+            public void onFinished(Future f) {
+                deadline.cancel();
             }
+        });
+
+        try {
+            (flush ? ch.writeAndFlush(msg) : ch.write(msg)).addListener(f);
+        } catch (RuntimeException e) {
+            f.setSendRequestOK(false).setCause(e).finish();
+            throw e;
         }
+        return f;
+    }
+
+    // feeds the latency and outcome of every request back to the provider's balancer
+    private Future newFuture(Channel ch, Future f) {
+        final String addr = ch.attr(addrKey).get();
+        if (addr != null) {
+            serviceAddrProvider.onRequest(addr);
+            f.addListener(new FutureListener() {
+                @Override
+                public void onFinished(Future f) {
+                    serviceAddrProvider.onResponse(addr, f.elapsedNanos(), f.isSendRequestOK() && f.getCause() == null);
+                }
+            });
+        }
+        return f;
+    }
+
+    protected AddRequest buildRequest(AddRequest.Builder builder) {
+        int seriesNum = builder.seriesNum();
+        if (!builder.isWithMerge()) {
+            mergeStats.unmerged(seriesNum);
+            return builder.build();
+        }
+
+        long start = System.nanoTime();
+        AddRequest request = builder.build();
+        mergeStats.merged(seriesNum, request.seriesNum(), System.nanoTime() - start);
+        return request;
+    }
+
+    protected AddRequest buildRequest(AddRequest.MergedBuilder merger) {
+        int seriesNum = merger.seriesNum();
+
+        long start = System.nanoTime();
+        AddRequest request = merger.build();
+        mergeStats.merged(seriesNum, request.seriesNum(), System.nanoTime() - start);
+        return request;
     }
 
     protected Channel getChannel() {
@@ -227,6 +577,7 @@ public abstract class AbstractClient implements TcpClient {
             try {
                 Channel ch = pool.acquire().get();
                 ch.attr(addrKey).set(addr);
+                ch.attr(poolKey).set(pool);
 
                 return ch;
             } catch (Exception e) {
@@ -245,14 +596,105 @@ public abstract class AbstractClient implements TcpClient {
             return;
         }
 
-        String addr = channel.attr(addrKey).get();
+        // back to the pool it came from, which refuses it if it was evicted and closed meanwhile
+        FixedChannelPool pool = channel.attr(poolKey).get();
+        if (pool == null || !pool.release(channel).awaitUninterruptibly().isSuccess()) {
+            channel.close();
+        }
+    }
 
-        FixedChannelPool pool = poolMap.get(addr);
-        if (pool != null) {
-            pool.release(channel).awaitUninterruptibly();
+    // evicts pools of addrs which are gone and warms up the ones of new addrs, in the background
+    private void syncPools() {
+        submitPoolTask(new Runnable() {
+            @Override
+            public void run() {
+                Set<String> addrs = new HashSet<String>(serviceAddrProvider.healthyAddress());
+
+                List<String> stale = new ArrayList<String>();
+                for (Map.Entry<String, FixedChannelPool> e : poolMap) {
+                    if (!addrs.contains(e.getKey())) {
+                        stale.add(e.getKey());
+                    }
+                }
+                for (String addr : stale) {
+                    evict(addr);
+                }
+
+                for (String addr : addrs) {
+                    if (!poolMap.contains(addr)) {
+                        warmUp(addr);
+                    }
+                }
+            }
+        });
+    }
+
+    private void evict(String addr) {
+        // closing a pool blocks until its idle channels are closed
+        if (poolMap.remove(addr)) {
+            log.info("evicted conn pool of {}", addr);
+        }
+    }
+
+    private void submitPoolTask(Runnable task) {
+        try {
+            runtime.scheduler().execute(task);
+        } catch (RejectedExecutionException e) {
+            // closed
+        }
+    }
+
+    // acquires minConnectionsOnEachServer channels at once so that the pool has to open them, then gives them back
+    private void warmUp(final String addr) {
+        final int n = Math.min(clientConfig.getMinConnectionsOnEachServer(), clientConfig.getMaxConnectionsOnEachServer());
+        if (n <= 0) {
+            return;
+        }
+
+        final FixedChannelPool pool;
+        try {
+            pool = poolMap.get(addr);
+        } catch (Exception e) {
+            log.warn("failed to warm up conn pool of " + addr, e);
+            return;
+        }
+
+        final Channel[] acquired = new Channel[n];
+        final AtomicInteger remaining = new AtomicInteger(n);
+        for (int i = 0; i < n; i++) {
+            final int idx = i;
+            pool.acquire().addListener(new GenericFutureListener<io.netty.util.concurrent.Future<Channel>>() {
+                @Override
+                public void operationComplete(io.netty.util.concurrent.Future<Channel> f) {
+                    if (f.isSuccess()) {
+                        acquired[idx] = f.getNow();
+                    }
+                    if (remaining.decrementAndGet() > 0) {
+                        return;
+                    }
+
+                    int warmed = 0;
+                    for (Channel ch : acquired) {
+                        if (ch != null) {
+                            ch.attr(addrKey).set(addr);
+                            pool.release(ch);
+                            warmed++;
+                        }
+                    }
+                    log.info("warmed up {} conns to {}", warmed, addr);
+                }
+            });
         }
     }
 
+    protected ClientRuntime runtime() {
+        return runtime;
+    }
+
+    protected String addrOf(Channel channel) {
+        return channel == null ? null : channel.attr(addrKey).get();
+    }
+
     void ensureWritable(Channel channel) {
         if (channel == null) {
             return;
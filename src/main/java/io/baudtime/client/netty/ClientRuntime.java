@@ -0,0 +1,103 @@
+/*
+ * Copyright 2019 The Baudtime Authors
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.baudtime.client.netty;
+
+import io.baudtime.client.ClientConfig;
+import io.baudtime.util.BaudtimeThreadFactory;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timer;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads and buffers clients can share, e.g. all the endpoints of a multi endpoint client.
+ * Queues and limits stay per client. Everything is shut down when the last client releases it.
+ */
+public class ClientRuntime {
+    private final Transport transport;
+    private final ScheduledExecutorService scheduler;
+    private final Timer timer;
+    private final ThreadPoolExecutor workerPool;
+    private final ByteBufAllocator allocator;
+
+    private final AtomicInteger refCnt = new AtomicInteger(1);
+
+    private ClientRuntime(Transport transport, int workerThreads, ByteBufAllocator allocator) {
+        this.transport = transport;
+        this.scheduler = Executors.newScheduledThreadPool(2, new BaudtimeThreadFactory("scheduler"));
+        this.timer = new HashedWheelTimer(new BaudtimeThreadFactory("timer"), 10, TimeUnit.MILLISECONDS);
+        this.workerPool = new ThreadPoolExecutor(workerThreads, workerThreads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new BaudtimeThreadFactory("worker"));
+        this.workerPool.allowCoreThreadTimeOut(true);
+        this.allocator = allocator;
+    }
+
+    public static ClientRuntime create(ClientConfig clientConfig) {
+        return new ClientRuntime(Transport.create(clientConfig), clientConfig.getWorkerThreads(), PooledByteBufAllocator.DEFAULT);
+    }
+
+    public Transport transport() {
+        return transport;
+    }
+
+    /**
+     * Runs periodic and delayed tasks, e.g. watching service addrs and traffic shaping.
+     */
+    public ScheduledExecutorService scheduler() {
+        return scheduler;
+    }
+
+    /**
+     * For many short timeouts, e.g. of requests.
+     */
+    public Timer timer() {
+        return timer;
+    }
+
+    /**
+     * Runs the batching workers of the clients.
+     */
+    public ExecutorService workerPool() {
+        return workerPool;
+    }
+
+    public ByteBufAllocator allocator() {
+        return allocator;
+    }
+
+    public ClientRuntime retain() {
+        int cnt;
+        do {
+            cnt = refCnt.get();
+            if (cnt <= 0) {
+                throw new IllegalStateException("runtime already released");
+            }
+        } while (!refCnt.compareAndSet(cnt, cnt + 1));
+        return this;
+    }
+
+    public void release() {
+        if (refCnt.decrementAndGet() == 0) {
+            workerPool.shutdownNow();
+            scheduler.shutdownNow();
+            timer.stop();
+            transport.release();
+        }
+    }
+}
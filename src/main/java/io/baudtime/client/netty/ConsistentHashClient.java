@@ -0,0 +1,114 @@
+/*
+ * Copyright 2019 The Baudtime Authors
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.baudtime.client.netty;
+
+import io.baudtime.client.ClientConfig;
+import io.baudtime.client.WriteMode;
+import io.baudtime.discovery.ServiceAddrObserver;
+import io.baudtime.discovery.ServiceAddrProvider;
+import io.baudtime.message.AddRequest;
+import io.baudtime.message.Series;
+import io.baudtime.util.ConsistentHashRing;
+import io.netty.channel.Channel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+
+/**
+ * Routes every series to the healthy address owning its hash on a consistent hash ring,
+ * so that the same series keeps landing on the same node.
+ */
+public class ConsistentHashClient extends AbstractClient implements ServiceAddrObserver {
+    private static final Logger log = LoggerFactory.getLogger(ConsistentHashClient.class);
+
+    private final int virtualNodes;
+    private volatile ConsistentHashRing ring;
+
+    public ConsistentHashClient(ClientConfig clientConfig, ServiceAddrProvider serviceAddrProvider, FutureListener writeResponseHook) {
+        this(clientConfig, null, serviceAddrProvider, writeResponseHook);
+    }
+
+    public ConsistentHashClient(ClientConfig clientConfig, ClientRuntime runtime, ServiceAddrProvider serviceAddrProvider, FutureListener writeResponseHook) {
+        super(clientConfig, runtime, serviceAddrProvider, writeResponseHook);
+        this.virtualNodes = clientConfig.getHashRingVirtualNodes();
+        this.ring = new ConsistentHashRing(serviceAddrProvider.healthyAddress(), virtualNodes);
+
+        serviceAddrProvider.addObserver(this);
+    }
+
+    @Override
+    public void append(Collection<Series> series, WriteMode mode) {
+        ConsistentHashRing ring = this.ring;
+        if (ring.isEmpty()) {
+            throw new RuntimeException("no server was found");
+        }
+
+        AddRequest.Builder[] builders = new AddRequest.Builder[ring.nodeNum()];
+        for (Series s : series) {
+            int idx = ring.indexOf(s.hash());
+
+            AddRequest.Builder builder = builders[idx];
+            if (builder == null) {
+                builder = mode == WriteMode.MERGE ? AddRequest.newBuilder() : new AddRequest.Builder();
+                builders[idx] = builder;
+            }
+            builder.addSeries(s);
+        }
+
+        RuntimeException failure = null;
+        for (int i = 0; i < builders.length; i++) {
+            if (builders[i] == null) {
+                continue;
+            }
+
+            Channel ch = null;
+            try {
+                ch = getChannel(ring.node(i));
+                asyncRequest(ch, buildRequest(builders[i]));
+            } catch (RuntimeException e) {
+                failure = e;
+            } finally {
+                putChannel(ch);
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void rebuildRing() {
+        ConsistentHashRing newRing = new ConsistentHashRing(serviceAddrProvider.healthyAddress(), virtualNodes);
+        this.ring = newRing;
+        log.info("hash ring rebuilt with {} nodes", newRing.nodeNum());
+    }
+
+    @Override
+    public void addrChanged() {
+        rebuildRing();
+    }
+
+    @Override
+    public void addrDown(String addr) {
+        rebuildRing();
+    }
+
+    @Override
+    public void addrRecover(String addr) {
+        rebuildRing();
+    }
+}
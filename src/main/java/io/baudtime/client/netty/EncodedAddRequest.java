@@ -0,0 +1,55 @@
+/*
+ * Copyright 2019 The Baudtime Authors
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.baudtime.client.netty;
+
+import io.baudtime.message.AddRequest;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * An AddRequest marshaled once, so that the same body can be sent to several endpoints.
+ * Every send takes a retained duplicate of the body, the owner calls {@link #release()} when done.
+ */
+public final class EncodedAddRequest {
+    private final ByteBuf body;
+    private final int seriesNum;
+
+    private EncodedAddRequest(ByteBuf body, int seriesNum) {
+        this.body = body;
+        this.seriesNum = seriesNum;
+    }
+
+    public static EncodedAddRequest encode(AddRequest request) {
+        return new EncodedAddRequest(Unpooled.wrappedBuffer(request.marshal()), request.seriesNum());
+    }
+
+    public int seriesNum() {
+        return seriesNum;
+    }
+
+    public int bodyLength() {
+        return body.readableBytes();
+    }
+
+    ByteBuf retainedBody() {
+        return body.retainedDuplicate();
+    }
+
+    public void release() {
+        body.release();
+    }
+}
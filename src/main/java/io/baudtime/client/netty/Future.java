@@ -17,6 +17,7 @@ package io.baudtime.client.netty;
 
 import io.baudtime.message.BaudMessage;
 import io.baudtime.message.Recyclable;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 
@@ -24,6 +25,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Future implements ChannelFutureListener {
     private final Long opaque;
@@ -32,8 +34,11 @@ public class Future implements ChannelFutureListener {
 
     private volatile boolean sendRequestOK = true;
     private volatile Throwable cause;
+    private volatile Channel channel;
 
     private final CountDownLatch countDownLatch = new CountDownLatch(1);
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+    private final long createdNanos = System.nanoTime();
 
     private List<FutureListener> listeners;
 
@@ -46,11 +51,20 @@ public class Future implements ChannelFutureListener {
         this.request = msg.getRaw();
     }
 
+    /**
+     * A listener added after the future finished is called at once by the calling thread.
+     */
     public Future addListener(FutureListener listener) {
-        if (listeners == null) {
-            listeners = new LinkedList<FutureListener>();
+        synchronized (this) {
+            if (!finished.get()) {
+                if (listeners == null) {
+                    listeners = new LinkedList<FutureListener>();
+                }
+                listeners.add(listener);
+                return this;
+            }
         }
-        listeners.add(listener);
+        listener.onFinished(this);
         return this;
     }
 
@@ -60,7 +74,11 @@ public class Future implements ChannelFutureListener {
 
     public BaudMessage await(long timeout, TimeUnit unit) throws InterruptedException {
         if (!this.countDownLatch.await(timeout, unit)) {
-            throw new RuntimeException("response timed out");
+            // finish it ourselves so that listeners also see the timeout, unless the response just arrived
+            RuntimeException e = new RuntimeException("response timed out");
+            if (cancel(e)) {
+                throw e;
+            }
         }
         return this.response;
     }
@@ -92,14 +110,54 @@ public class Future implements ChannelFutureListener {
         return this;
     }
 
+    Channel getChannel() {
+        return channel;
+    }
+
+    Future setChannel(Channel channel) {
+        this.channel = channel;
+        return this;
+    }
+
+    public long elapsedNanos() {
+        return System.nanoTime() - createdNanos;
+    }
+
+    public boolean isDone() {
+        return finished.get();
+    }
+
     public Future finish() {
+        if (finished.compareAndSet(false, true)) {
+            notifyFinished();
+        }
+        return this;
+    }
+
+    /**
+     * Finishes the future with the cause unless it has finished already, a response arriving later is dropped.
+     */
+    public boolean cancel(Throwable cause) {
+        if (finished.compareAndSet(false, true)) {
+            this.cause = cause;
+            notifyFinished();
+            return true;
+        }
+        return false;
+    }
+
+    private void notifyFinished() {
         this.countDownLatch.countDown();
+
+        List<FutureListener> listeners;
+        synchronized (this) {
+            listeners = this.listeners;
+        }
         if (listeners != null) {
             for (FutureListener listener : listeners) {
                 listener.onFinished(this);
             }
         }
-        return this;
     }
 
     @Override
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2019 The Baudtime Authors
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.baudtime.client.netty;
+
+import io.baudtime.client.ClientConfig;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decides when a query is hedged: after a fixed delay or the p95 latency of its address, and only while
+ * the budget allows. Every query earns budgetPercent hundredths of a hedge, a hedge spends one.
+ */
+class Hedger {
+    private static final long TOKEN = 1000;
+    private static final long MAX_TOKENS = 10 * TOKEN;
+    private static final int MIN_SAMPLES = 20;
+
+    private final long fixedDelayNanos;
+    private final long tokensPerQuery;
+    private final AtomicLong tokens = new AtomicLong();
+
+    private final ConcurrentMap<String, Histogram> latencies = new ConcurrentHashMap<String, Histogram>();
+
+    Hedger(ClientConfig clientConfig) {
+        this.fixedDelayNanos = TimeUnit.MILLISECONDS.toNanos(clientConfig.getHedgeDelayMillis());
+        this.tokensPerQuery = clientConfig.getHedgeBudgetPercent() * TOKEN / 100;
+    }
+
+    void onQuery() {
+        long t;
+        do {
+            t = tokens.get();
+            if (t >= MAX_TOKENS) {
+                return;
+            }
+        } while (!tokens.compareAndSet(t, Math.min(t + tokensPerQuery, MAX_TOKENS)));
+    }
+
+    boolean tryAcquire() {
+        long t;
+        do {
+            t = tokens.get();
+            if (t < TOKEN) {
+                return false;
+            }
+        } while (!tokens.compareAndSet(t, t - TOKEN));
+        return true;
+    }
+
+    /**
+     * -1 if the query should not be hedged, e.g. too few latencies of the address are known.
+     */
+    long delayNanos(String addr) {
+        if (fixedDelayNanos > 0) {
+            return fixedDelayNanos;
+        }
+        Histogram h = latencies.get(addr);
+        return h == null ? -1 : h.quantile(0.95, MIN_SAMPLES);
+    }
+
+    void record(String addr, long latencyNanos) {
+        Histogram h = latencies.get(addr);
+        if (h == null) {
+            h = new Histogram();
+            Histogram old = latencies.putIfAbsent(addr, h);
+            if (old != null) {
+                h = old;
+            }
+        }
+        h.record(latencyNanos);
+    }
+
+    // log-scaled buckets from 100us, 4 per doubling, over the current and the previous 30s window
+    private static class Histogram {
+        private static final int BUCKETS = 80;
+        private static final double MIN_NANOS = 100000;
+        private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+        private volatile AtomicLongArray current = new AtomicLongArray(BUCKETS);
+        private volatile AtomicLongArray previous = new AtomicLongArray(BUCKETS);
+        private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+
+        private void record(long nanos) {
+            long now = System.nanoTime();
+            long start = windowStart.get();
+            if (now - start >= WINDOW_NANOS && windowStart.compareAndSet(start, now)) {
+                previous = current;
+                current = new AtomicLongArray(BUCKETS);
+            }
+
+            int i = nanos <= MIN_NANOS ? 0 : (int) Math.ceil(4 * Math.log(nanos / MIN_NANOS) / Math.log(2));
+            current.incrementAndGet(Math.min(i, BUCKETS - 1));
+        }
+
+        private long quantile(double q, int minSamples) {
+            AtomicLongArray cur = current, prev = previous;
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = cur.get(i) + prev.get(i);
+                total += counts[i];
+            }
+            if (total < minSamples) {
+                return -1;
+            }
+
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return (long) (MIN_NANOS * Math.pow(2, i / 4.0));
+                }
+            }
+            return (long) (MIN_NANOS * Math.pow(2, (BUCKETS - 1) / 4.0));
+        }
+    }
+}
@@ -16,17 +16,19 @@
 package io.baudtime.client.netty;
 
 import io.baudtime.client.ClientConfig;
-import io.baudtime.discovery.ServiceAddrObserver;
+import io.baudtime.client.WriteMode;
+import io.baudtime.discovery.ServiceAddrDiffObserver;
 import io.baudtime.discovery.ServiceAddrProvider;
 import io.baudtime.message.AddRequest;
 import io.baudtime.message.Series;
 import io.baudtime.util.Assert;
 import io.netty.channel.Channel;
 
-import java.util.Collection;
-import java.util.concurrent.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
-public class KeyBoundClient<K> extends AbstractClient implements ServiceAddrObserver {
+public class KeyBoundClient<K> extends AbstractClient implements ServiceAddrDiffObserver {
 
     public interface KeyMapping<K> {
         K getKey(Collection<Series> series);
@@ -35,11 +37,16 @@ public class KeyBoundClient<K> extends AbstractClient implements ServiceAddrObse
     private final KeyMapping<K> keyMapping;
     private final ConcurrentMap<K /* key, may be hash code */, Channel> channels = new ConcurrentHashMap<K, Channel>();
 
-    private final ExecutorService updateChannelThread = new ThreadPoolExecutor(1, 1,
-            0L, TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>(), new ThreadPoolExecutor.DiscardPolicy());
+    // guarded by channels: keys moved off an addr while it was down, and the addr such keys go back to on their next write
+    private final Map<String /* addr */, Set<K>> displaced = new HashMap<String, Set<K>>();
+    private final Map<K, String /* addr */> homes = new HashMap<K, String>();
 
     public KeyBoundClient(KeyMapping<K> keyMapping, ClientConfig clientConfig, ServiceAddrProvider serviceAddrProvider, FutureListener writeResponseHook) {
-        super(clientConfig, serviceAddrProvider, writeResponseHook);
+        this(keyMapping, clientConfig, null, serviceAddrProvider, writeResponseHook);
+    }
+
+    public KeyBoundClient(KeyMapping<K> keyMapping, ClientConfig clientConfig, ClientRuntime runtime, ServiceAddrProvider serviceAddrProvider, FutureListener writeResponseHook) {
+        super(clientConfig, runtime, serviceAddrProvider, writeResponseHook);
         Assert.notNull(keyMapping);
         this.keyMapping = keyMapping;
 
@@ -47,12 +54,13 @@ public class KeyBoundClient<K> extends AbstractClient implements ServiceAddrObse
     }
 
     @Override
-    public void append(Collection<Series> series) {
-        AddRequest.Builder reqBuilder = AddRequest.newBuilder();
+    public void append(Collection<Series> series, WriteMode mode) {
+        AddRequest.Builder reqBuilder = mode == WriteMode.MERGE ?
+                AddRequest.newBuilder(series.size()) : new AddRequest.Builder(series.size());
         reqBuilder.addSeries(series);
 
         Channel ch = getChannelBySeries(series);
-        asyncRequest(ch, reqBuilder.build());
+        asyncRequest(ch, buildRequest(reqBuilder));
     }
 
     private Channel getChannelBySeries(Collection<Series> series) {
@@ -69,7 +77,7 @@ public class KeyBoundClient<K> extends AbstractClient implements ServiceAddrObse
                 return c;
             }
 
-            Channel newc = getChannel();
+            Channel newc = getHomeChannel(key);
             Channel oldc = this.channels.put(key, newc);
             if (oldc != null) {
                 oldc.close();
@@ -79,41 +87,105 @@ public class KeyBoundClient<K> extends AbstractClient implements ServiceAddrObse
         }
     }
 
+    // called with the channels lock held
+    private Channel getHomeChannel(K key) {
+        String home = homes.remove(key);
+        if (home != null) {
+            try {
+                return getChannel(home);
+            } catch (RuntimeException e) {
+                // down again, the key goes wherever the provider picks
+            }
+        }
+        return getChannel();
+    }
+
     @Override
     public void addrChanged() {
-        updateChannels();
+        // only the keys on addrs which are no longer served move
+        Set<String> gone = new HashSet<String>();
+        Collection<String> addrs = serviceAddrProvider.healthyAddress();
+        synchronized (this.channels) {
+            for (Channel ch : channels.values()) {
+                String addr = addrOf(ch);
+                if (addr != null && !addrs.contains(addr)) {
+                    gone.add(addr);
+                }
+            }
+        }
+        unbind(gone, false);
     }
 
     @Override
-    public void addrDown(String addr) {
+    public void addrsChanged(Set<String> added, Set<String> removed) {
+        // keys on the addrs that stay keep their channels, the others get a new one on their next write
+        unbind(removed, false);
+    }
 
+    @Override
+    public void addrDown(String addr) {
+        unbind(Collections.singleton(addr), true);
     }
 
     @Override
     public void addrRecover(String addr) {
-        updateChannels();
+        // the keys taken away by addrDown go back, the others stay where they are
+        synchronized (this.channels) {
+            Set<K> keys = displaced.remove(addr);
+            if (keys == null) {
+                return;
+            }
+            for (K key : keys) {
+                Channel ch = channels.get(key);
+                if (ch != null && addr.equals(addrOf(ch))) {
+                    continue;
+                }
+                if (ch != null) {
+                    channels.remove(key);
+                    ch.close();
+                    putChannel(ch);
+                }
+                homes.put(key, addr);
+            }
+        }
     }
 
-    private void updateChannels() {
-        updateChannelThread.submit(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    Thread.sleep(5000);
-                } catch (InterruptedException e) {
-                    //
-                }
+    private void unbind(Set<String> addrs, boolean remember) {
+        if (addrs.isEmpty()) {
+            return;
+        }
 
-                synchronized (channels) {
-                    for (Channel ch : channels.values()) {
-                        if (ch != null) {
-                            ch.close();
-                            putChannel(ch);
+        synchronized (this.channels) {
+            for (Iterator<Map.Entry<K, Channel>> it = channels.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<K, Channel> e = it.next();
+                Channel ch = e.getValue();
+                String addr = addrOf(ch);
+                if (ch != null && addrs.contains(addr)) {
+                    it.remove();
+                    ch.close();
+                    putChannel(ch);
+
+                    if (remember) {
+                        Set<K> keys = displaced.get(addr);
+                        if (keys == null) {
+                            keys = new HashSet<K>();
+                            displaced.put(addr, keys);
                         }
+                        keys.add(e.getKey());
                     }
-                    channels.clear();
                 }
             }
-        });
+
+            if (!remember) {
+                for (String addr : addrs) {
+                    displaced.remove(addr);
+                }
+                for (Iterator<String> it = homes.values().iterator(); it.hasNext(); ) {
+                    if (addrs.contains(it.next())) {
+                        it.remove();
+                    }
+                }
+            }
+        }
     }
 }
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2019 The Baudtime Authors
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.baudtime.client.netty;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the series merging done before add requests are sent.
+ */
+public class MergeStats {
+    private final AtomicLong mergedRequests = new AtomicLong();
+    private final AtomicLong mergeInputSeries = new AtomicLong();
+    private final AtomicLong mergeOutputSeries = new AtomicLong();
+    private final AtomicLong mergeNanos = new AtomicLong();
+    private final AtomicLong unmergedRequests = new AtomicLong();
+    private final AtomicLong unmergedSeries = new AtomicLong();
+
+    void merged(int inputSeries, int outputSeries, long nanos) {
+        mergedRequests.incrementAndGet();
+        mergeInputSeries.addAndGet(inputSeries);
+        mergeOutputSeries.addAndGet(outputSeries);
+        mergeNanos.addAndGet(nanos);
+    }
+
+    void unmerged(int series) {
+        unmergedRequests.incrementAndGet();
+        unmergedSeries.addAndGet(series);
+    }
+
+    public long getMergedRequests() {
+        return mergedRequests.get();
+    }
+
+    public long getMergeInputSeries() {
+        return mergeInputSeries.get();
+    }
+
+    public long getMergeOutputSeries() {
+        return mergeOutputSeries.get();
+    }
+
+    public long getMergeNanos() {
+        return mergeNanos.get();
+    }
+
+    public long getUnmergedRequests() {
+        return unmergedRequests.get();
+    }
+
+    public long getUnmergedSeries() {
+        return unmergedSeries.get();
+    }
+
+    @Override
+    public String toString() {
+        return "MergeStats{mergedRequests=" + mergedRequests +
+                ", mergeInputSeries=" + mergeInputSeries +
+                ", mergeOutputSeries=" + mergeOutputSeries +
+                ", mergeNanos=" + mergeNanos +
+                ", unmergedRequests=" + unmergedRequests +
+                ", unmergedSeries=" + unmergedSeries + '}';
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2019 The Baudtime Authors
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.baudtime.client.netty;
+
+import io.baudtime.discovery.HealthChecker;
+import io.baudtime.message.AddRequest;
+import io.baudtime.message.GeneralResponse;
+import io.baudtime.message.StatusCode;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Checks addrs with non-blocking connects on the client's event loop, so any number of them are checked in parallel.
+ * With protocol ping on, an empty add request must also be acknowledged by the server.
+ */
+class NettyHealthChecker implements HealthChecker {
+    private static final long PING_OPAQUE = 0;
+
+    private final EventLoopGroup eventLoopGroup;
+    private final Class<? extends Channel> channelClass;
+    private final int timeoutMillis;
+    private final boolean protocolPing;
+    private final int maxResponseFrameLength;
+    private volatile boolean closed;
+
+    NettyHealthChecker(EventLoopGroup eventLoopGroup, Class<? extends Channel> channelClass,
+                       int timeoutMillis, boolean protocolPing, int maxResponseFrameLength) {
+        this.eventLoopGroup = eventLoopGroup;
+        this.channelClass = channelClass;
+        this.timeoutMillis = timeoutMillis;
+        this.protocolPing = protocolPing;
+        this.maxResponseFrameLength = maxResponseFrameLength;
+    }
+
+    @Override
+    public void check(final String addr, final Callback callback) {
+        if (closed) {
+            throw new RuntimeException("health checker closed");
+        }
+
+        String[] s = addr.split(":");
+        if (s.length != 2) {
+            throw new RuntimeException("invalid format of addr");
+        }
+
+        final Result result = new Result(addr, callback);
+
+        Bootstrap bootstrap = new Bootstrap()
+                .group(eventLoopGroup)
+                .channel(channelClass)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, timeoutMillis)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        if (protocolPing) {
+                            ch.pipeline().addLast(new ResponseDecoder(maxResponseFrameLength), new RequestEncoder(), new PongHandler(result));
+                        }
+                    }
+                });
+
+        ChannelFuture connectFuture = bootstrap.connect(s[0], Integer.parseInt(s[1]));
+        final Channel ch = connectFuture.channel();
+
+        connectFuture.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                if (!future.isSuccess()) {
+                    result.report(ch, false);
+                    return;
+                }
+
+                if (!protocolPing) {
+                    result.report(ch, true);
+                    return;
+                }
+
+                ch.writeAndFlush(new Message(PING_OPAQUE, new AddRequest.Builder().build())).addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture future) {
+                        if (!future.isSuccess()) {
+                            result.report(ch, false);
+                        }
+                    }
+                });
+                ch.eventLoop().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        result.report(ch, false);
+                    }
+                }, timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    // the event loop belongs to the client runtime, only new checks are refused
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    private static class Result {
+        private final String addr;
+        private final Callback callback;
+        private final AtomicBoolean reported = new AtomicBoolean(false);
+
+        private Result(String addr, Callback callback) {
+            this.addr = addr;
+            this.callback = callback;
+        }
+
+        private void report(Channel ch, boolean healthy) {
+            if (reported.compareAndSet(false, true)) {
+                ch.close();
+                callback.onResult(addr, healthy);
+            }
+        }
+    }
+
+    private static class PongHandler extends SimpleChannelInboundHandler<Message> {
+        private final Result result;
+
+        private PongHandler(Result result) {
+            this.result = result;
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, Message msg) {
+            boolean healthy = msg.getOpaque() == PING_OPAQUE && msg.getRaw() instanceof GeneralResponse &&
+                    ((GeneralResponse) msg.getRaw()).getStatus() != StatusCode.Failed;
+            result.report(ctx.channel(), healthy);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            result.report(ctx.channel(), false);
+            ctx.fireChannelInactive();
+        }
+    }
+}
@@ -19,22 +19,31 @@ import io.baudtime.message.BaudMessage;
 import io.baudtime.message.GeneralResponse;
 import io.baudtime.message.StatusCode;
 import io.baudtime.util.ConcurrentReferenceHashMap;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import static io.baudtime.util.ConcurrentReferenceHashMap.ReferenceType;
 
 @Sharable
 class ResponseHandler extends SimpleChannelInboundHandler<Message> {
 
-    private final ConcurrentReferenceHashMap<Long, Future> futures = new ConcurrentReferenceHashMap<Long, Future>(16, ReferenceType.STRONG, ReferenceType.SOFT);
+    private final ConcurrentReferenceHashMap<Long, Future> futures = new ConcurrentReferenceHashMap<Long, Future>(16, ReferenceType.STRONG, ReferenceType.STRONG);
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, Message msg) {
         Future future = futures.get(msg.getOpaque());
         if (future != null) {
             try {
+                if (future.isDone()) {
+                    // cancelled or timed out, the late response is dropped
+                    return;
+                }
+
                 BaudMessage response = msg.getRaw();
                 if (response instanceof GeneralResponse && StatusCode.Failed == ((GeneralResponse) response).getStatus()) {
                     future.setCause(new Exception(((GeneralResponse) response).getMessage()));
@@ -46,9 +55,31 @@ class ResponseHandler extends SimpleChannelInboundHandler<Message> {
         }
     }
 
-    public void registerFuture(Future future) {
+    // requests written to a connection that went away are never answered
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        Channel ch = ctx.channel();
+
+        List<Future> pending = new ArrayList<Future>();
+        for (Future future : futures.values()) {
+            if (future.getChannel() == ch) {
+                pending.add(future);
+            }
+        }
+        if (!pending.isEmpty()) {
+            RuntimeException cause = new RuntimeException("connection to " + ch.remoteAddress() + " closed");
+            for (Future future : pending) {
+                future.cancel(cause);
+                futures.remove(future.getOpaque());
+            }
+        }
+
+        super.channelInactive(ctx);
+    }
+
+    public void registerFuture(Channel ch, Future future) {
         if (future != null) {
-            futures.put(future.getOpaque(), future);
+            futures.put(future.getOpaque(), future.setChannel(ch));
         }
     }
 
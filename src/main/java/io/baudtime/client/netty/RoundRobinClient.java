@@ -16,6 +16,7 @@
 package io.baudtime.client.netty;
 
 import io.baudtime.client.ClientConfig;
+import io.baudtime.client.WriteMode;
 import io.baudtime.discovery.ServiceAddrProvider;
 import io.baudtime.message.AddRequest;
 import io.baudtime.message.Series;
@@ -26,18 +27,23 @@ import java.util.Collection;
 public class RoundRobinClient extends AbstractClient {
 
     public RoundRobinClient(ClientConfig clientConfig, ServiceAddrProvider serviceAddrProvider, FutureListener writeResponseHook) {
-        super(clientConfig, serviceAddrProvider, writeResponseHook);
+        this(clientConfig, null, serviceAddrProvider, writeResponseHook);
+    }
+
+    public RoundRobinClient(ClientConfig clientConfig, ClientRuntime runtime, ServiceAddrProvider serviceAddrProvider, FutureListener writeResponseHook) {
+        super(clientConfig, runtime, serviceAddrProvider, writeResponseHook);
     }
 
     @Override
-    public void append(Collection<Series> series) {
-        AddRequest.Builder reqBuilder = AddRequest.newBuilder();
+    public void append(Collection<Series> series, WriteMode mode) {
+        AddRequest.Builder reqBuilder = mode == WriteMode.MERGE ?
+                AddRequest.newBuilder(series.size()) : new AddRequest.Builder(series.size());
         reqBuilder.addSeries(series);
 
         Channel ch = null;
         try {
             ch = getChannel();
-            asyncRequest(ch, reqBuilder.build());
+            asyncRequest(ch, buildRequest(reqBuilder));
         } finally {
             putChannel(ch);
         }
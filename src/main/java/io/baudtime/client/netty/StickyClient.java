@@ -16,12 +16,14 @@
 package io.baudtime.client.netty;
 
 import io.baudtime.client.ClientConfig;
-import io.baudtime.discovery.ServiceAddrObserver;
+import io.baudtime.client.WriteMode;
+import io.baudtime.discovery.ServiceAddrDiffObserver;
 import io.baudtime.discovery.ServiceAddrProvider;
 import io.baudtime.message.AddRequest;
 import io.baudtime.message.Series;
-import io.baudtime.util.BaudtimeThreadFactory;
+import io.baudtime.util.MpscArrayQueue;
 import io.baudtime.util.Util;
+import io.baudtime.util.WaitStrategy;
 import io.netty.channel.Channel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,46 +34,51 @@ import java.util.concurrent.atomic.AtomicBoolean;
 
 public class StickyClient extends AbstractClient {
 
-    private final ThreadPoolExecutor workerThreads;
     private final List<Worker> workers = new ArrayList<Worker>();
 
+    private final ThreadLocal<Partition> partitions = new ThreadLocal<Partition>() {
+        @Override
+        protected Partition initialValue() {
+            return new Partition(workers.size());
+        }
+    };
+
     public StickyClient(ClientConfig clientConfig, ServiceAddrProvider serviceAddrProvider, FutureListener writeHook) {
-        super(clientConfig, serviceAddrProvider, writeHook);
+        this(clientConfig, null, serviceAddrProvider, writeHook);
+    }
+
+    public StickyClient(ClientConfig clientConfig, ClientRuntime runtime, ServiceAddrProvider serviceAddrProvider, FutureListener writeHook) {
+        super(clientConfig, runtime, serviceAddrProvider, writeHook);
 
         ClientConfig.StickyConfig stickyConfig = clientConfig.getStickyConfig();
         int workNum = stickyConfig.getWorkerNum();
 
-        workerThreads = new ThreadPoolExecutor(workNum, workNum, 0L, TimeUnit.MILLISECONDS,
-                new LinkedBlockingQueue<Runnable>(), new BaudtimeThreadFactory("nettyWorker"));
         for (int i = 0; i < workNum; i++) {
-            Worker worker = new Worker(stickyConfig.getBatchSize());
+            Worker worker = new Worker(stickyConfig);
             workers.add(worker);
-            workerThreads.submit(worker);
             serviceAddrProvider.addObserver(worker);
         }
     }
 
     @Override
-    public void append(Collection<Series> series) {
-        Map<Integer, AddRequest.Builder> builders = new HashMap<Integer, AddRequest.Builder>();
+    public void append(Collection<Series> series, WriteMode mode) {
+        Partition partition = partitions.get();
 
-        for (Series s : series) {
-            int idx = workerIndex(s.hash());
-
-            AddRequest.Builder builder = builders.get(idx);
-            if (builder == null) {
-                builder = AddRequest.newBuilder();
-                builders.put(idx, builder);
+        // every bucket is emptied even if this call fails halfway, or the next call on the thread would resend its leftovers
+        try {
+            for (Series s : series) {
+                partition.add(workerIndex(s.hash()), s);
             }
 
-            builder.addSeries(s);
-        }
-
-        Worker worker;
-        for (Map.Entry<Integer, AddRequest.Builder> e : builders.entrySet()) {
-            worker = getWorker(e.getKey());
-            if (worker != null) {
-                worker.submit(e.getValue());
+            for (int i = 0; i < partition.buckets.length; i++) {
+                int n = partition.counts[i];
+                if (n > 0) {
+                    getWorker(i).submit(partition.buckets[i], n);
+                }
+            }
+        } finally {
+            for (int i = 0; i < partition.buckets.length; i++) {
+                partition.reset(i);
             }
         }
     }
@@ -81,7 +88,6 @@ public class StickyClient extends AbstractClient {
         for (Worker worker : workers) {
             worker.exit();
         }
-        this.workerThreads.shutdown();
         super.close();
     }
 
@@ -93,76 +99,221 @@ public class StickyClient extends AbstractClient {
         return workers.get(index);
     }
 
-    private class Worker implements Runnable, ServiceAddrObserver {
+    // series of one append call grouped by worker index, reused by the calling thread
+    private static class Partition {
+        private final Series[][] buckets;
+        private final int[] counts;
+
+        private Partition(int workerNum) {
+            buckets = new Series[workerNum][];
+            counts = new int[workerNum];
+            for (int i = 0; i < workerNum; i++) {
+                buckets[i] = new Series[16];
+            }
+        }
+
+        private void add(int idx, Series s) {
+            Series[] bucket = buckets[idx];
+            int n = counts[idx];
+            if (n == bucket.length) {
+                bucket = Arrays.copyOf(bucket, n * 2);
+                buckets[idx] = bucket;
+            }
+            bucket[n] = s;
+            counts[idx] = n + 1;
+        }
+
+        private void reset(int idx) {
+            Arrays.fill(buckets[idx], 0, counts[idx], null);
+            counts[idx] = 0;
+        }
+    }
+
+    private class Worker implements Runnable, ServiceAddrDiffObserver {
         private final Logger log = LoggerFactory.getLogger(this.getClass());
         private long backOff = 1;
 
-        private final BlockingQueue<AddRequest.Builder> queue;
+        private final MpscArrayQueue<Series> queue;
+        private final AddRequest.MergedBuilder merger;
+        private final WaitStrategy waitStrategy;
         private final int batchSize;
+        private final long lingerNanos;
+        private final int maxBatchBytes;
+        private final int maxBatchSeries;
 
         private Channel ch;
         private AtomicBoolean shouldUpdate = new AtomicBoolean(false);
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        // the open batch waits in merger until it fills up or lingerNanos after its first series
+        private long batchDeadline;
+        private ScheduledFuture<?> lingerTask;
+        private final Runnable lingerWakeUp = new Runnable() {
+            @Override
+            public void run() {
+                wakeUp();
+            }
+        };
 
         private volatile boolean running = true;
 
-        private Worker(int batchSize) {
-            this.queue = new ArrayBlockingQueue<AddRequest.Builder>(batchSize / 4 + batchSize);
-            this.batchSize = batchSize;
+        private Worker(ClientConfig.StickyConfig stickyConfig) {
+            this.batchSize = stickyConfig.getBatchSize();
+            this.queue = new MpscArrayQueue<Series>(Math.max(4 * batchSize, 1024));
+            this.waitStrategy = stickyConfig.getWaitStrategy();
+            this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(stickyConfig.getLingerMillis());
+            this.maxBatchBytes = stickyConfig.getMaxBatchBytes();
+            this.maxBatchSeries = stickyConfig.getMaxBatchSeries();
+            this.merger = new AddRequest.MergedBuilder(batchSize);
         }
 
+        // sends at most one batch per run and goes back to the end of the shared pool's queue if more is queued,
+        // so that workers outnumbering the pool threads all get their turn and idle or lingering workers hold no thread
         @Override
         public void run() {
-            while (running) {
-                AddRequest.MergedBuilder merger = new AddRequest.MergedBuilder();
-
-                while (merger.size() < batchSize) {
-                    try {
-                        AddRequest.Builder builder = this.queue.poll(200, TimeUnit.MILLISECONDS);
-                        if (builder != null) {
-                            merger.merge(builder);
-                        } else {
-                            break;
-                        }
-                    } catch (InterruptedException e) {
-                        break;
-                    }
-                }
+            if (!running) {
+                log.info("write worker exit");
+                return;
+            }
 
-                try {
-                    if (ch == null || !ch.isActive() || shouldUpdate.compareAndSet(true, false)) {
-                        updateChannel();
-                    }
+            if (!ensureChannel()) {
+                // retried later rather than holding a pool thread while no server is reachable
+                retryLater();
+                return;
+            }
+
+            boolean closed = fill(merger);
+            if (closed || lingerPassed()) {
+                flush();
+            }
+
+            if (!queue.isEmpty()) {
+                execute();
+                return;
+            }
+
+            scheduled.set(false);
+            // a producer may have enqueued, or the linger time passed, after the checks and seen the worker still scheduled
+            if ((!queue.isEmpty() || lingerPassed()) && scheduled.compareAndSet(false, true)) {
+                execute();
+            }
+        }
 
-                    if (ch != null && ch.isActive() && merger.size() > 0) {
-                        asyncRequest(ch, merger.build());
+        private void wakeUp() {
+            if (running && scheduled.compareAndSet(false, true)) {
+                execute();
+            }
+        }
+
+        private void execute() {
+            try {
+                runtime().workerPool().execute(this);
+            } catch (RejectedExecutionException e) {
+                scheduled.set(false);
+            }
+        }
+
+        private void retryLater() {
+            try {
+                runtime().scheduler().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        execute();
                     }
-                } catch (Exception e) {
-                    log.error(e.getMessage());
+                }, backOff, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                scheduled.set(false);
+            }
+        }
+
+        // moves what is queued into the open batch, true once the batch is closed by batchSize points,
+        // maxBatchSeries or maxBatchBytes, otherwise it is sent when the linger time has passed
+        private boolean fill(AddRequest.MergedBuilder merger) {
+            while (!isFull(merger)) {
+                Series series = this.queue.peek();
+                if (series == null) {
+                    return false;
+                }
+
+                if (merger.seriesNum() == 0) {
+                    openBatch();
+                } else if (maxBatchBytes > 0 && merger.estimatedBytes() + AddRequest.estimateEncodedSize(series) > maxBatchBytes) {
+                    // left for the next batch rather than overshooting the byte limit
+                    return true;
                 }
+                merger.addSeries(this.queue.poll());
             }
+            return true;
+        }
 
-            log.info("write worker exit");
+        private boolean lingerPassed() {
+            return merger.seriesNum() > 0 && System.nanoTime() - batchDeadline >= 0;
         }
 
-        private void submit(AddRequest.Builder addRequestBuilder) {
-            if (!running) {
-                return;
+        private void openBatch() {
+            batchDeadline = System.nanoTime() + lingerNanos;
+            if (lingerNanos > 0) {
+                try {
+                    lingerTask = runtime().scheduler().schedule(lingerWakeUp, lingerNanos, TimeUnit.NANOSECONDS);
+                } catch (RejectedExecutionException e) {
+                    lingerTask = null;
+                }
             }
+        }
 
+        private void flush() {
             try {
-                this.queue.put(addRequestBuilder);
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
+                asyncRequest(ch, buildRequest(merger));
+            } catch (Exception e) {
+                log.error(e.getMessage());
+            } finally {
+                merger.clear();
+                if (lingerTask != null) {
+                    lingerTask.cancel(false);
+                    lingerTask = null;
+                }
             }
         }
 
+        private boolean isFull(AddRequest.MergedBuilder merger) {
+            return merger.size() >= batchSize ||
+                    (maxBatchSeries > 0 && merger.seriesNum() >= maxBatchSeries) ||
+                    (maxBatchBytes > 0 && merger.estimatedBytes() >= maxBatchBytes);
+        }
+
+        private void submit(Series[] series, int n) {
+            int from = 0;
+            int idle = 0;
+
+            while (running && from < n) {
+                int offered = this.queue.offer(series, from, n);
+                if (offered > 0) {
+                    from += offered;
+                    idle = 0;
+                    continue;
+                }
+
+                wakeUp();
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new RuntimeException(new InterruptedException());
+                }
+                idle = waitStrategy.idle(idle);
+            }
+            wakeUp();
+        }
+
         private void exit() {
             running = false;
         }
 
-        private void updateChannel() throws InterruptedException {
-            Thread.sleep(backOff);
+        private boolean ensureChannel() {
+            if (ch == null || !ch.isActive() || shouldUpdate.compareAndSet(true, false)) {
+                updateChannel();
+            }
+            return ch != null && ch.isActive();
+        }
 
+        private void updateChannel() {
             Channel oldCh = this.ch;
             this.ch = null;
 
@@ -198,8 +349,19 @@ public class StickyClient extends AbstractClient {
         }
 
         @Override
-        public void addrDown(String addr) {
+        public void addrsChanged(Set<String> added, Set<String> removed) {
+            // only the workers whose addr left switch, the others keep their channel
+            if (removed.contains(addrOf(ch))) {
+                shouldUpdate.set(true);
+            }
+        }
 
+        @Override
+        public void addrDown(String addr) {
+            // the channel may still be active, e.g. the circuit of its addr opened
+            if (addr.equals(addrOf(ch))) {
+                shouldUpdate.set(true);
+            }
         }
 
         @Override
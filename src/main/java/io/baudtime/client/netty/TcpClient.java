@@ -15,16 +15,32 @@
 
 package io.baudtime.client.netty;
 
+import io.baudtime.client.WriteMode;
 import io.baudtime.message.BaudMessage;
 import io.baudtime.message.Series;
 
 import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 public interface TcpClient {
     BaudMessage query(BaudMessage request, long timeout, TimeUnit unit);
 
+    Future asyncQuery(BaudMessage request, long timeout, TimeUnit unit);
+
+    List<BaudMessage> batchQuery(List<? extends BaudMessage> requests, long timeout, TimeUnit unit);
+
     void append(Collection<Series> series);
 
+    void append(Collection<Series> series, WriteMode mode);
+
+    Future append(EncodedAddRequest request);
+
+    EncodedAddRequest encode(Collection<Series> series);
+
+    EncodedAddRequest encode(Collection<Series> series, WriteMode mode);
+
+    MergeStats mergeStats();
+
     void close();
 }
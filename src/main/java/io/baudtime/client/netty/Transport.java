@@ -0,0 +1,152 @@
+/*
+ * Copyright 2019 The Baudtime Authors
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.baudtime.client.netty;
+
+import io.baudtime.client.ClientConfig;
+import io.baudtime.client.TransportType;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The event loop group and the channel type clients connect with. It may be shared by several clients,
+ * the group is shut down when the last of them releases it.
+ */
+public class Transport {
+    private static final Logger log = LoggerFactory.getLogger(Transport.class);
+
+    private static final String IO_URING_PACKAGE = "io.netty.incubator.channel.uring.";
+
+    private final TransportType type;
+    private final EventLoopGroup eventLoopGroup;
+    private final Class<? extends Channel> channelClass;
+    private final AtomicInteger refCnt = new AtomicInteger(1);
+
+    private Transport(TransportType type, EventLoopGroup eventLoopGroup, Class<? extends Channel> channelClass) {
+        this.type = type;
+        this.eventLoopGroup = eventLoopGroup;
+        this.channelClass = channelClass;
+    }
+
+    public static Transport create(ClientConfig clientConfig) {
+        int threads = clientConfig.getIoThreads();
+        ThreadFactory threadFactory = clientConfig.getIoThreadFactory();
+
+        TransportType type = clientConfig.getTransportType();
+        if (type == TransportType.IO_URING) {
+            Transport t = ioUring(threads, threadFactory);
+            if (t != null) {
+                return t;
+            }
+            type = TransportType.AUTO;
+        }
+
+        if (type == TransportType.EPOLL || (type == TransportType.AUTO && Epoll.isAvailable())) {
+            Epoll.ensureAvailability();
+            EventLoopGroup group = threadFactory == null ? new EpollEventLoopGroup(threads) : new EpollEventLoopGroup(threads, threadFactory);
+            return new Transport(TransportType.EPOLL, group, EpollSocketChannel.class);
+        }
+
+        EventLoopGroup group = threadFactory == null ? new NioEventLoopGroup(threads) : new NioEventLoopGroup(threads, threadFactory);
+        return new Transport(TransportType.NIO, group, NioSocketChannel.class);
+    }
+
+    // loaded by reflection so that the io_uring transport stays an optional dependency
+    @SuppressWarnings("unchecked")
+    private static Transport ioUring(int threads, ThreadFactory threadFactory) {
+        try {
+            Class<?> ioUring = Class.forName(IO_URING_PACKAGE + "IOUring");
+            if (!(Boolean) ioUring.getMethod("isAvailable").invoke(null)) {
+                log.warn("io_uring is not available, fall back", (Throwable) ioUring.getMethod("unavailabilityCause").invoke(null));
+                return null;
+            }
+
+            Class<?> groupClass = Class.forName(IO_URING_PACKAGE + "IOUringEventLoopGroup");
+            EventLoopGroup group = (EventLoopGroup) (threadFactory == null ?
+                    groupClass.getConstructor(int.class).newInstance(threads) :
+                    groupClass.getConstructor(int.class, ThreadFactory.class).newInstance(threads, threadFactory));
+            Class<? extends Channel> channelClass = (Class<? extends Channel>) Class.forName(IO_URING_PACKAGE + "IOUringSocketChannel");
+            return new Transport(TransportType.IO_URING, group, channelClass);
+        } catch (ClassNotFoundException e) {
+            log.warn("io_uring transport is not on the classpath, fall back");
+        } catch (Exception e) {
+            log.warn("failed to load io_uring transport, fall back", e);
+        }
+        return null;
+    }
+
+    public TransportType type() {
+        return type;
+    }
+
+    public EventLoopGroup eventLoopGroup() {
+        return eventLoopGroup;
+    }
+
+    public Class<? extends Channel> channelClass() {
+        return channelClass;
+    }
+
+    /**
+     * Applies the native options of the transport, options of other transports are ignored.
+     */
+    void configure(Bootstrap bootstrap, ClientConfig clientConfig) {
+        if (type != TransportType.EPOLL) {
+            return;
+        }
+
+        bootstrap.option(EpollChannelOption.EPOLL_MODE,
+                clientConfig.isEpollEdgeTriggered() ? EpollMode.EDGE_TRIGGERED : EpollMode.LEVEL_TRIGGERED);
+        if (clientConfig.isTcpCork()) {
+            bootstrap.option(EpollChannelOption.TCP_CORK, true);
+        }
+        if (clientConfig.isTcpQuickAck()) {
+            bootstrap.option(EpollChannelOption.TCP_QUICKACK, true);
+        }
+        if (clientConfig.getBusyPollMicros() > 0) {
+            bootstrap.option(EpollChannelOption.SO_BUSY_POLL, clientConfig.getBusyPollMicros());
+        }
+    }
+
+    public Transport retain() {
+        int cnt;
+        do {
+            cnt = refCnt.get();
+            if (cnt <= 0) {
+                throw new IllegalStateException("transport already released");
+            }
+        } while (!refCnt.compareAndSet(cnt, cnt + 1));
+        return this;
+    }
+
+    public void release() {
+        if (refCnt.decrementAndGet() == 0) {
+            eventLoopGroup.shutdownGracefully();
+        }
+    }
+}
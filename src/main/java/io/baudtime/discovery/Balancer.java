@@ -0,0 +1,35 @@
+/*
+ * Copyright 2019 The Baudtime Authors
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.baudtime.discovery;
+
+import java.util.Collection;
+import java.util.List;
+
+public interface Balancer {
+    /**
+     * Picks one of the healthy addrs, addrs is never empty.
+     */
+    String select(List<String> addrs);
+
+    void onRequest(String addr);
+
+    void onResponse(String addr, long latencyNanos, boolean succeed);
+
+    /**
+     * Called with all the addrs whenever the membership changes, state kept for other addrs can be dropped.
+     */
+    void retain(Collection<String> addrs);
+}
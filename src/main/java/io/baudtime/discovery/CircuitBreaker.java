@@ -0,0 +1,134 @@
+/*
+ * Copyright 2019 The Baudtime Authors
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.baudtime.discovery;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Circuit of one addr. Closed lets everything through while counting failures of the current window,
+ * open rejects everything, half-open lets a few probes through to decide which way to go.
+ */
+public class CircuitBreaker {
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final CircuitBreakerConfig config;
+    private final long windowNanos;
+    private final long openNanos;
+
+    private final AtomicReference<State> state = new AtomicReference<State>(State.CLOSED);
+
+    private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+
+    private final AtomicInteger permits = new AtomicInteger();
+    private final AtomicInteger probeSuccesses = new AtomicInteger();
+    private volatile long halfOpenSince;
+
+    CircuitBreaker(CircuitBreakerConfig config) {
+        this.config = config;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(config.getWindowMillis());
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(config.getOpenMillis());
+    }
+
+    public State getState() {
+        return state.get();
+    }
+
+    boolean allowRequest() {
+        switch (state.get()) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                return false;
+            default:
+                long now = System.nanoTime();
+                // probes that never got an outcome would keep the circuit half-open forever
+                if (permits.get() <= 0 && now - halfOpenSince > openNanos) {
+                    halfOpenSince = now;
+                    permits.set(config.getHalfOpenRequests());
+                }
+
+                int p;
+                do {
+                    p = permits.get();
+                    if (p <= 0) {
+                        return false;
+                    }
+                } while (!permits.compareAndSet(p, p - 1));
+                return true;
+        }
+    }
+
+    /**
+     * Returns the state this outcome moved the circuit to, or null if it stayed where it was.
+     */
+    State onResult(boolean succeed) {
+        switch (state.get()) {
+            case OPEN:
+                return null;
+            case HALF_OPEN:
+                if (!succeed) {
+                    return state.compareAndSet(State.HALF_OPEN, State.OPEN) ? State.OPEN : null;
+                }
+                if (probeSuccesses.incrementAndGet() >= config.getHalfOpenRequests() &&
+                        state.compareAndSet(State.HALF_OPEN, State.CLOSED)) {
+                    resetWindow(System.nanoTime());
+                    return State.CLOSED;
+                }
+                return null;
+            default:
+                long now = System.nanoTime();
+                long start = windowStart.get();
+                if (now - start >= windowNanos && windowStart.compareAndSet(start, now)) {
+                    requests.set(0);
+                    failures.set(0);
+                }
+
+                int total = requests.incrementAndGet();
+                if (succeed) {
+                    return null;
+                }
+                int failed = failures.incrementAndGet();
+                if (total >= config.getMinRequests() && failed >= config.getFailureRatio() * total &&
+                        state.compareAndSet(State.CLOSED, State.OPEN)) {
+                    return State.OPEN;
+                }
+                return null;
+        }
+    }
+
+    /**
+     * Called once the open time has passed.
+     */
+    boolean halfOpen() {
+        probeSuccesses.set(0);
+        permits.set(config.getHalfOpenRequests());
+        halfOpenSince = System.nanoTime();
+        return state.compareAndSet(State.OPEN, State.HALF_OPEN);
+    }
+
+    private void resetWindow(long now) {
+        windowStart.set(now);
+        requests.set(0);
+        failures.set(0);
+    }
+}
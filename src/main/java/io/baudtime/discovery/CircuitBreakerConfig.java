@@ -0,0 +1,114 @@
+/*
+ * Copyright 2019 The Baudtime Authors
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.baudtime.discovery;
+
+import io.baudtime.util.Assert;
+
+import java.util.concurrent.TimeUnit;
+
+public class CircuitBreakerConfig {
+    private double failureRatio;
+    private int minRequests;
+    private long windowMillis;
+    private long openMillis;
+    private int halfOpenRequests;
+
+    /**
+     * The circuit of an addr opens once this ratio of its requests failed or timed out within a window.
+     */
+    public double getFailureRatio() {
+        return failureRatio;
+    }
+
+    /**
+     * Requests a window needs before its failure ratio is trusted.
+     */
+    public int getMinRequests() {
+        return minRequests;
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    /**
+     * How long an open circuit rejects requests before letting probes through.
+     */
+    public long getOpenMillis() {
+        return openMillis;
+    }
+
+    /**
+     * Successful probes needed to close a half-open circuit, one failed probe opens it again.
+     */
+    public int getHalfOpenRequests() {
+        return halfOpenRequests;
+    }
+
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private double failureRatio = 0.5;
+        private int minRequests = 20;
+        private long windowMillis = TimeUnit.SECONDS.toMillis(10);
+        private long openMillis = TimeUnit.SECONDS.toMillis(30);
+        private int halfOpenRequests = 5;
+
+        public Builder failureRatio(double failureRatio) {
+            this.failureRatio = failureRatio;
+            return this;
+        }
+
+        public Builder minRequests(int minRequests) {
+            this.minRequests = minRequests;
+            return this;
+        }
+
+        public Builder window(long window, TimeUnit unit) {
+            this.windowMillis = unit.toMillis(window);
+            return this;
+        }
+
+        public Builder openTime(long openTime, TimeUnit unit) {
+            this.openMillis = unit.toMillis(openTime);
+            return this;
+        }
+
+        public Builder halfOpenRequests(int halfOpenRequests) {
+            this.halfOpenRequests = halfOpenRequests;
+            return this;
+        }
+
+        public CircuitBreakerConfig build() {
+            Assert.isPositive(minRequests);
+            Assert.isPositive(windowMillis);
+            Assert.isPositive(openMillis);
+            Assert.isPositive(halfOpenRequests);
+            Assert.isPositive(failureRatio);
+            Assert.notBiggerThan(failureRatio, 1, "failureRatio must not be bigger than 1");
+
+            CircuitBreakerConfig config = new CircuitBreakerConfig();
+            config.failureRatio = this.failureRatio;
+            config.minRequests = this.minRequests;
+            config.windowMillis = this.windowMillis;
+            config.openMillis = this.openMillis;
+            config.halfOpenRequests = this.halfOpenRequests;
+            return config;
+        }
+    }
+}
@@ -21,11 +21,9 @@ import org.xbill.DNS.*;
 
 import java.net.InetAddress;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Iterator;
 import java.util.TreeSet;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class DnsServiceAddrProvider extends StaticServiceAddrProvider {
     private static final Logger LOGGER = LoggerFactory.getLogger(DnsServiceAddrProvider.class);
@@ -59,11 +57,10 @@ public class DnsServiceAddrProvider extends StaticServiceAddrProvider {
                         addrs.add(address.getHostAddress() + ":" + servicePort);
                     }
                 }
-                Collections.shuffle(addrs);
             }
         }
 
-        this.healthyAddrs = addrs;
+        this.healthyAddrs = shuffledSnapshot(addrs);
         this.checkInterval = checkInterval;
         this.checkTimeUnit = timeUnit;
     }
@@ -72,7 +69,7 @@ public class DnsServiceAddrProvider extends StaticServiceAddrProvider {
     public void watch() {
         super.watch();
 
-        watcher.scheduleWithFixedDelay(new Runnable() {
+        scheduleWithFixedDelay(new Runnable() {
             @Override
             public void run() {
                 try {
@@ -93,18 +90,8 @@ public class DnsServiceAddrProvider extends StaticServiceAddrProvider {
                         ArrayList<String> dummyAddrs = new ArrayList<String>();
                         String newHostsFingerprint = computeFingerprint(hosts, dummyAddrs);
                         if (hostsFingerprint == null || !hostsFingerprint.equals(newHostsFingerprint)) {
-                            Collections.shuffle(dummyAddrs);
-
-                            ReentrantReadWriteLock.WriteLock l = DnsServiceAddrProvider.this.addrsLock.writeLock();
-
-                            l.lock();
-                            DnsServiceAddrProvider.this.healthyAddrs = dummyAddrs;
+                            updateAddrs(dummyAddrs);
                             hostsFingerprint = newHostsFingerprint;
-                            l.unlock();
-
-                            for (ServiceAddrObserver o : observers) {
-                                o.addrChanged();
-                            }
                         }
                     }
                 } catch (Exception e) {
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2019 The Baudtime Authors
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.baudtime.discovery;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads addrs from a file, one per line, blank lines and lines starting with '#' are skipped.
+ * The file is polled and observers are told which addrs were added and removed whenever it changes.
+ */
+public class FileServiceAddrProvider extends StaticServiceAddrProvider {
+    private static final Logger log = LoggerFactory.getLogger(FileServiceAddrProvider.class);
+
+    private static final long POLL_MILLIS = 500;
+    // coarsest mtime resolution of common file systems
+    private static final long MTIME_GRANULARITY_MILLIS = 2000;
+
+    private final File file;
+
+    // only touched by the poll task
+    private Stamp readStamp;
+    private Stamp pendingStamp;
+    private long readAt;
+    private List<String> readAddrs;
+
+    public FileServiceAddrProvider(String file) {
+        this(file, 15, TimeUnit.SECONDS);
+    }
+
+    public FileServiceAddrProvider(String file, long checkInterval, TimeUnit timeUnit) {
+        this.file = new File(file).getAbsoluteFile();
+        this.checkInterval = checkInterval;
+        this.checkTimeUnit = timeUnit;
+
+        try {
+            this.readStamp = stamp();
+            this.readAt = System.currentTimeMillis();
+            this.readAddrs = read();
+            updateAddrs(readAddrs);
+        } catch (IOException e) {
+            throw new RuntimeException("failed to read " + file, e);
+        }
+    }
+
+    @Override
+    public void watch() {
+        super.watch();
+
+        scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    poll();
+                } catch (Exception e) {
+                    log.error("poll " + file + " error", e);
+                }
+            }
+        }, POLL_MILLIS, POLL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // writers often truncate then write, so a change is only read once the file looked the same on two polls in a row
+    private void poll() {
+        Stamp stamp = stamp();
+        if (stamp.equals(readStamp)) {
+            // a rewrite of the same length within the mtime tick of the last read leaves the stamp as it was
+            if (readAt - stamp.lastModified < MTIME_GRANULARITY_MILLIS) {
+                read(stamp);
+            }
+            return;
+        }
+        if (!stamp.equals(pendingStamp)) {
+            pendingStamp = stamp;
+            return;
+        }
+
+        read(stamp);
+    }
+
+    private void read(Stamp stamp) {
+        long now = System.currentTimeMillis();
+        try {
+            List<String> addrs = read();
+            readStamp = stamp;
+            readAt = now;
+            if (!addrs.equals(readAddrs)) {
+                readAddrs = addrs;
+                updateAddrs(addrs);
+            }
+        } catch (IOException e) {
+            // e.g. deleted before being replaced, keeps the addrs we have and is not retried until the file changes
+            readStamp = stamp;
+            readAt = now;
+            log.warn("failed to read {}, {}", file, e.getMessage());
+        }
+    }
+
+    private Stamp stamp() {
+        return new Stamp(file.lastModified(), file.length());
+    }
+
+    private List<String> read() throws IOException {
+        List<String> addrs = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                addrs.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return addrs;
+    }
+
+    private static class Stamp {
+        private final long lastModified;
+        private final long length;
+
+        private Stamp(long lastModified, long length) {
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Stamp)) {
+                return false;
+            }
+            Stamp other = (Stamp) o;
+            return lastModified == other.lastModified && length == other.length;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (lastModified * 31 + length);
+        }
+    }
+}
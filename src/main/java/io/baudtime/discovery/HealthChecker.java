@@ -0,0 +1,32 @@
+/*
+ * Copyright 2019 The Baudtime Authors
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.baudtime.discovery;
+
+/**
+ * Checks whether an addr is reachable without blocking the caller, the result is reported through the callback.
+ */
+public interface HealthChecker {
+    void check(String addr, Callback callback);
+
+    /**
+     * Called by the provider once it no longer uses the checker, checks in flight still report.
+     */
+    void close();
+
+    interface Callback {
+        void onResult(String addr, boolean healthy);
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2019 The Baudtime Authors
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.baudtime.discovery;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Samples two healthy addrs at random and picks the one with the lower EWMA latency weighted by
+ * its in-flight requests. Addrs much slower than the median are ejected for a while.
+ */
+public class PowerOfTwoChoicesBalancer implements Balancer {
+    private static final Logger log = LoggerFactory.getLogger(PowerOfTwoChoicesBalancer.class);
+
+    private final long decayNanos;
+    private final long failurePenaltyNanos;
+    private final double ejectionRatio;
+    private final long minEjectionLatencyNanos;
+    private final long ejectionNanos;
+    private final double maxEjectionPercent;
+    private final int minSamples = 10;
+    private final long checkIntervalNanos = TimeUnit.SECONDS.toNanos(1);
+
+    private final ConcurrentMap<String, AddrStats> stats = new ConcurrentHashMap<String, AddrStats>();
+    private final AtomicLong lastCheck = new AtomicLong(System.nanoTime());
+
+    private final ThreadLocal<Random> random = new ThreadLocal<Random>() {
+        @Override
+        protected Random initialValue() {
+            return new Random();
+        }
+    };
+
+    public PowerOfTwoChoicesBalancer() {
+        this(10, TimeUnit.SECONDS, 3.0, 30, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param decay          time constant of the EWMA
+     * @param ejectionRatio  addrs whose EWMA latency is above ejectionRatio times the median are ejected
+     * @param ejection       how long an outlier stays ejected
+     */
+    public PowerOfTwoChoicesBalancer(long decay, TimeUnit decayUnit, double ejectionRatio, long ejection, TimeUnit ejectionUnit) {
+        this.decayNanos = decayUnit.toNanos(decay);
+        this.failurePenaltyNanos = TimeUnit.SECONDS.toNanos(1);
+        this.ejectionRatio = ejectionRatio;
+        this.minEjectionLatencyNanos = TimeUnit.MILLISECONDS.toNanos(20);
+        this.ejectionNanos = ejectionUnit.toNanos(ejection);
+        this.maxEjectionPercent = 0.34;
+    }
+
+    @Override
+    public String select(List<String> addrs) {
+        int n = addrs.size();
+        if (n == 1) {
+            return addrs.get(0);
+        }
+
+        Random r = random.get();
+        int i = r.nextInt(n);
+        int j = r.nextInt(n - 1);
+        if (j >= i) {
+            j++;
+        }
+
+        String a = addrs.get(i);
+        String b = addrs.get(j);
+        AddrStats sa = stats(a);
+        AddrStats sb = stats(b);
+
+        long now = System.nanoTime();
+        boolean ejectedA = sa.isEjected(now);
+        boolean ejectedB = sb.isEjected(now);
+        if (ejectedA != ejectedB) {
+            return ejectedA ? b : a;
+        }
+        return sa.score() <= sb.score() ? a : b;
+    }
+
+    @Override
+    public void onRequest(String addr) {
+        stats(addr).inflight.incrementAndGet();
+    }
+
+    @Override
+    public void onResponse(String addr, long latencyNanos, boolean succeed) {
+        AddrStats s = stats.get(addr);
+        if (s == null) {
+            // a late response of a removed addr
+            return;
+        }
+        s.inflight.decrementAndGet();
+
+        long now = System.nanoTime();
+        s.observe(succeed ? latencyNanos : Math.max(latencyNanos, failurePenaltyNanos), now);
+
+        long last = lastCheck.get();
+        if (now - last >= checkIntervalNanos && lastCheck.compareAndSet(last, now)) {
+            checkOutliers(now);
+        }
+    }
+
+    @Override
+    public void retain(Collection<String> addrs) {
+        stats.keySet().retainAll(new HashSet<String>(addrs));
+    }
+
+    public double ewmaLatencyNanos(String addr) {
+        AddrStats s = stats.get(addr);
+        return s == null ? 0 : s.ewma;
+    }
+
+    public int inflight(String addr) {
+        AddrStats s = stats.get(addr);
+        return s == null ? 0 : s.inflight.get();
+    }
+
+    private AddrStats stats(String addr) {
+        AddrStats s = stats.get(addr);
+        if (s == null) {
+            s = new AddrStats();
+            AddrStats old = stats.putIfAbsent(addr, s);
+            if (old != null) {
+                s = old;
+            }
+        }
+        return s;
+    }
+
+    private void checkOutliers(long now) {
+        List<Map.Entry<String, AddrStats>> active = new ArrayList<Map.Entry<String, AddrStats>>();
+        int ejected = 0;
+        for (Map.Entry<String, AddrStats> e : stats.entrySet()) {
+            AddrStats s = e.getValue();
+            if (s.isEjected(now)) {
+                ejected++;
+            } else if (s.samples >= minSamples && now - s.lastUpdate <= decayNanos) {
+                active.add(e);
+            }
+        }
+        if (active.size() < 3) {
+            return;
+        }
+
+        double[] latencies = new double[active.size()];
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = active.get(i).getValue().ewma;
+        }
+        Arrays.sort(latencies);
+        double median = latencies[latencies.length / 2];
+
+        int maxEjected = (int) ((active.size() + ejected) * maxEjectionPercent);
+        for (Map.Entry<String, AddrStats> e : active) {
+            AddrStats s = e.getValue();
+            if (ejected >= maxEjected) {
+                break;
+            }
+            if (s.ewma > minEjectionLatencyNanos && s.ewma > ejectionRatio * median) {
+                log.warn("eject slow addr {}, ewma latency {}ms, median {}ms", e.getKey(),
+                        TimeUnit.NANOSECONDS.toMillis((long) s.ewma), TimeUnit.NANOSECONDS.toMillis((long) median));
+                s.eject(now + ejectionNanos, median);
+                ejected++;
+            }
+        }
+    }
+
+    private class AddrStats {
+        private final AtomicInteger inflight = new AtomicInteger();
+        private volatile double ewma;
+        private volatile long lastUpdate = System.nanoTime();
+        private volatile long samples;
+        private volatile long ejectedUntil;
+
+        private synchronized void observe(long latencyNanos, long now) {
+            if (samples == 0) {
+                ewma = latencyNanos;
+            } else {
+                double w = Math.exp(-(double) Math.max(now - lastUpdate, 0) / decayNanos);
+                ewma = ewma * w + latencyNanos * (1 - w);
+            }
+            lastUpdate = now;
+            samples++;
+        }
+
+        private double score() {
+            return (ewma + 1) * (inflight.get() + 1);
+        }
+
+        private boolean isEjected(long now) {
+            return ejectedUntil != 0 && now - ejectedUntil < 0;
+        }
+
+        // restarts from the median, so an addr coming back gets some traffic to prove itself
+        private synchronized void eject(long until, double median) {
+            ejectedUntil = until;
+            ewma = median;
+            samples = 0;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2019 The Baudtime Authors
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.baudtime.discovery;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Every thread walks the addrs with its own cursor starting at a random offset,
+ * so selection never contends and the threads together still spread evenly.
+ */
+public class RoundRobinBalancer implements Balancer {
+    private static final Random seed = new Random();
+
+    private final ThreadLocal<int[]> cursor = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[]{seed.nextInt(Integer.MAX_VALUE)};
+        }
+    };
+
+    @Override
+    public String select(List<String> addrs) {
+        int[] c = cursor.get();
+        int i = c[0]++ & Integer.MAX_VALUE;
+        return addrs.get(i % addrs.size());
+    }
+
+    @Override
+    public void onRequest(String addr) {
+    }
+
+    @Override
+    public void onResponse(String addr, long latencyNanos, boolean succeed) {
+    }
+
+    @Override
+    public void retain(Collection<String> addrs) {
+    }
+}
@@ -16,6 +16,7 @@
 package io.baudtime.discovery;
 
 import java.util.Collection;
+import java.util.concurrent.ScheduledExecutorService;
 
 public interface ServiceAddrProvider {
     String getServiceAddr();
@@ -24,9 +25,24 @@ public interface ServiceAddrProvider {
 
     void serviceDown(String addr);
 
+    void onRequest(String addr);
+
+    void onResponse(String addr, long latencyNanos, boolean succeed);
+
+    /**
+     * An addr is marked down after downThreshold consecutive failed checks and back up after upThreshold successful ones.
+     */
+    void setHealthChecker(HealthChecker healthChecker, int downThreshold, int upThreshold);
+
     void addObserver(ServiceAddrObserver observer);
 
     void watch();
 
+    /**
+     * Like {@link #watch()} but runs the watch tasks on a scheduler shared with others,
+     * {@link #stopWatch()} then cancels the tasks instead of shutting the scheduler down.
+     */
+    void watch(ScheduledExecutorService scheduler);
+
     void stopWatch();
 }
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2019 The Baudtime Authors
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.baudtime.discovery;
+
+import io.baudtime.util.BaudtimeThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Connects with a blocking socket on a cached thread pool, used when no client has installed a better checker.
+ */
+public class SocketHealthChecker implements HealthChecker {
+    private static final Logger log = LoggerFactory.getLogger(SocketHealthChecker.class);
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(new BaudtimeThreadFactory("healthCheck"));
+    private final int timeoutMillis;
+
+    public SocketHealthChecker(int timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public void check(final String addr, final Callback callback) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean healthy;
+                try {
+                    healthy = ping(addr);
+                } catch (RuntimeException e) {
+                    // e.g. a malformed addr, reported as unhealthy so the check still ends
+                    log.warn("failed to check {}, {}", addr, e.getMessage());
+                    healthy = false;
+                }
+                callback.onResult(addr, healthy);
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    private boolean ping(String addr) {
+        String[] s = addr.split(":");
+        if (s.length != 2) {
+            throw new RuntimeException("invalid format of addr");
+        }
+
+        SocketAddress address = new InetSocketAddress(s[0], Integer.parseInt(s[1]));
+        Socket socket = new Socket();
+
+        try {
+            try {
+                socket.connect(address, timeoutMillis);
+                return socket.isConnected();
+            } finally {
+                socket.close();
+            }
+        } catch (IOException e) {
+
+        }
+        return false;
+    }
+}
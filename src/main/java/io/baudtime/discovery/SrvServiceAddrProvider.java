@@ -0,0 +1,240 @@
+/*
+ * Copyright 2019 The Baudtime Authors
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.baudtime.discovery;
+
+import io.baudtime.util.BaudtimeThreadFactory;
+import io.baudtime.util.Util;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.AddressedEnvelope;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.handler.codec.dns.*;
+import io.netty.resolver.dns.DnsNameResolver;
+import io.netty.resolver.dns.DnsNameResolverBuilder;
+import io.netty.resolver.dns.SingletonDnsServerAddressStreamProvider;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.Promise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Discovers addrs from the SRV records of a service name, e.g. "_baudtime._tcp.example.com".
+ * Resolution is asynchronous and the records are resolved again when their TTL expires.
+ * Only the records of the lowest priority are used, and their weights drive a {@link WeightedBalancer},
+ * the only kind of balancer the provider accepts.
+ */
+public class SrvServiceAddrProvider extends StaticServiceAddrProvider {
+    private static final Logger log = LoggerFactory.getLogger(SrvServiceAddrProvider.class);
+
+    private static final long MIN_REFRESH_MILLIS = 1000;
+
+    private final String serviceName;
+    private final long maxRefreshMillis;
+
+    // not the loop of a client runtime: the first resolution runs in the constructor, before any client exists,
+    // and the runtime's transport may be epoll, whose loops can't carry the nio datagram channel of the resolver.
+    // The single thread is idle between resolutions.
+    private final EventLoopGroup eventLoopGroup = new NioEventLoopGroup(1, new BaudtimeThreadFactory("srvResolver"));
+    private final DnsNameResolver resolver;
+    // the balancer installed by setBalancer, fed with the weights of every resolution
+    private volatile WeightedBalancer balancer;
+    private volatile Map<String, Integer> weights = Collections.emptyMap();
+
+    private final Future<Long> firstResolved;
+    private volatile boolean watching;
+    private long backOff = MIN_REFRESH_MILLIS;
+
+    public SrvServiceAddrProvider(String serviceName) {
+        this(serviceName, null, 60, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param nameServer         queried instead of the system name servers if not null
+     * @param maxRefreshInterval upper bound of the time between two resolutions whatever the TTL,
+     *                           also the interval unhealthy addrs are checked at
+     */
+    public SrvServiceAddrProvider(String serviceName, InetSocketAddress nameServer, long maxRefreshInterval, TimeUnit timeUnit) {
+        this.serviceName = serviceName;
+        this.maxRefreshMillis = Math.max(timeUnit.toMillis(maxRefreshInterval), MIN_REFRESH_MILLIS);
+        this.checkInterval = maxRefreshInterval;
+        this.checkTimeUnit = timeUnit;
+
+        DnsNameResolverBuilder builder = new DnsNameResolverBuilder(eventLoopGroup.next())
+                .channelType(NioDatagramChannel.class);
+        if (nameServer != null) {
+            builder.nameServerProvider(new SingletonDnsServerAddressStreamProvider(nameServer));
+        }
+        this.resolver = builder.build();
+
+        setBalancer(new WeightedBalancer());
+
+        // awaited, so that a client built right after already has addrs
+        this.firstResolved = resolve();
+        if (!firstResolved.awaitUninterruptibly(resolver.queryTimeoutMillis() + 1000) || !firstResolved.isSuccess()) {
+            log.warn("failed to resolve " + serviceName, firstResolved.cause());
+        }
+    }
+
+    @Override
+    public synchronized void setBalancer(Balancer balancer) {
+        if (!(balancer instanceof WeightedBalancer)) {
+            throw new RuntimeException("the balancer of SRV addrs must be a WeightedBalancer");
+        }
+
+        WeightedBalancer b = (WeightedBalancer) balancer;
+        b.setWeights(weights);
+        this.balancer = b;
+        super.setBalancer(b);
+    }
+
+    @Override
+    public void watch() {
+        super.watch();
+
+        watching = true;
+        scheduleRefresh(nextRefreshMillis(firstResolved));
+    }
+
+    @Override
+    public void stopWatch() {
+        watching = false;
+        super.stopWatch();
+
+        resolver.close();
+        eventLoopGroup.shutdownGracefully();
+    }
+
+    private void scheduleRefresh(long delayMillis) {
+        if (!watching) {
+            return;
+        }
+
+        try {
+            schedule(new Runnable() {
+                @Override
+                public void run() {
+                    resolve().addListener(new GenericFutureListener<Future<Long>>() {
+                        @Override
+                        public void operationComplete(Future<Long> f) {
+                            if (!f.isSuccess()) {
+                                log.error("resolve " + serviceName + " error", f.cause());
+                            }
+                            scheduleRefresh(nextRefreshMillis(f));
+                        }
+                    });
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // stopped
+        }
+    }
+
+    long nextRefreshMillis(Future<Long> resolved) {
+        if (!resolved.isSuccess()) {
+            backOff = Util.exponential(backOff, MIN_REFRESH_MILLIS, maxRefreshMillis);
+            return backOff;
+        }
+        backOff = MIN_REFRESH_MILLIS;
+
+        long ttlMillis = TimeUnit.SECONDS.toMillis(resolved.getNow());
+        return Math.min(Math.max(ttlMillis, MIN_REFRESH_MILLIS), maxRefreshMillis);
+    }
+
+    // completes with the smallest TTL of the records, in seconds
+    Future<Long> resolve() {
+        final Promise<Long> ttl = eventLoopGroup.next().newPromise();
+
+        resolver.query(new DefaultDnsQuestion(serviceName, DnsRecordType.SRV)).addListener(
+                new GenericFutureListener<Future<AddressedEnvelope<DnsResponse, InetSocketAddress>>>() {
+                    @Override
+                    public void operationComplete(Future<AddressedEnvelope<DnsResponse, InetSocketAddress>> f) {
+                        if (!f.isSuccess()) {
+                            ttl.setFailure(f.cause());
+                            return;
+                        }
+
+                        AddressedEnvelope<DnsResponse, InetSocketAddress> envelope = f.getNow();
+                        try {
+                            ttl.setSuccess(update(envelope.content()));
+                        } catch (Exception e) {
+                            ttl.setFailure(e);
+                        } finally {
+                            envelope.release();
+                        }
+                    }
+                });
+
+        return ttl;
+    }
+
+    private long update(DnsResponse response) {
+        if (response.code() != DnsResponseCode.NOERROR) {
+            throw new RuntimeException("resolve " + serviceName + " got " + response.code());
+        }
+
+        int minPriority = Integer.MAX_VALUE;
+        long minTtl = Long.MAX_VALUE;
+        Map<String, Integer> weights = new HashMap<String, Integer>();
+
+        int n = response.count(DnsSection.ANSWER);
+        for (int i = 0; i < n; i++) {
+            DnsRecord record = response.recordAt(DnsSection.ANSWER, i);
+            if (record.type() != DnsRecordType.SRV || !(record instanceof DnsRawRecord)) {
+                continue;
+            }
+
+            ByteBuf content = ((DnsRawRecord) record).content();
+            int idx = content.readerIndex();
+            int priority = content.getUnsignedShort(idx);
+            int weight = content.getUnsignedShort(idx + 2);
+            int port = content.getUnsignedShort(idx + 4);
+            // the buffer spans the whole message, so compressed names can be followed
+            String target = DefaultDnsRecordDecoder.decodeName(content.duplicate().readerIndex(idx + 6));
+            if (target.endsWith(".")) {
+                target = target.substring(0, target.length() - 1);
+            }
+
+            if (priority > minPriority) {
+                continue;
+            }
+            if (priority < minPriority) {
+                minPriority = priority;
+                weights.clear();
+            }
+            weights.put(target + ":" + port, weight);
+            minTtl = Math.min(minTtl, record.timeToLive());
+        }
+
+        if (weights.isEmpty()) {
+            // keeps the addrs we have rather than dropping all of them
+            throw new RuntimeException("no SRV record of " + serviceName);
+        }
+
+        synchronized (this) {
+            this.weights = weights;
+            balancer.setWeights(weights);
+        }
+        updateAddrs(weights.keySet());
+        return minTtl;
+    }
+}
@@ -15,31 +15,39 @@
 
 package io.baudtime.discovery;
 
+import io.baudtime.util.Assert;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.net.SocketAddress;
 import java.util.*;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class StaticServiceAddrProvider implements ServiceAddrProvider {
     private static final Logger log = LoggerFactory.getLogger(StaticServiceAddrProvider.class);
 
-    protected List<String> healthyAddrs;
+    // an immutable snapshot read without locking, replaced as a whole under the write lock of addrsLock
+    protected volatile List<String> healthyAddrs;
     protected Set<String> unhealthyAddrs = new HashSet<String>(128);
     protected final ReentrantReadWriteLock addrsLock = new ReentrantReadWriteLock();
 
-    private final AtomicInteger iter = new AtomicInteger();
+    private volatile Balancer balancer = new RoundRobinBalancer();
 
-    protected final ScheduledExecutorService watcher = Executors.newSingleThreadScheduledExecutor();
+    private volatile HealthChecker healthChecker = new SocketHealthChecker(300);
+    private volatile int downThreshold = 1;
+    private volatile int upThreshold = 1;
+    private volatile long recheckIntervalMillis = 1000;
+    private final ConcurrentMap<String, CheckState> checkStates = new ConcurrentHashMap<String, CheckState>();
+
+    private volatile CircuitBreakerConfig circuitBreakerConfig;
+    private final ConcurrentMap<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<String, CircuitBreaker>();
+    private final AtomicInteger openCircuits = new AtomicInteger();
+
+    protected volatile ScheduledExecutorService watcher = Executors.newSingleThreadScheduledExecutor();
+    private volatile boolean sharedWatcher;
+    private final Queue<ScheduledFuture<?>> watchTasks = new ConcurrentLinkedQueue<ScheduledFuture<?>>();
     protected long checkInterval;
     protected TimeUnit checkTimeUnit;
 
@@ -58,70 +66,220 @@ public class StaticServiceAddrProvider implements ServiceAddrProvider {
         this.checkInterval = checkInterval;
         this.checkTimeUnit = timeUnit;
 
-        this.healthyAddrs = new LinkedList<String>(Arrays.asList(addrs));
-        Collections.shuffle(this.healthyAddrs);
+        this.healthyAddrs = shuffledSnapshot(Arrays.asList(addrs));
     }
 
     public StaticServiceAddrProvider(long checkInterval, TimeUnit timeUnit, List<String> addrs) {
         this.checkInterval = checkInterval;
         this.checkTimeUnit = timeUnit;
 
-        this.healthyAddrs = addrs;
-        Collections.shuffle(this.healthyAddrs);
+        this.healthyAddrs = shuffledSnapshot(addrs);
     }
 
     @Override
     public String getServiceAddr() {
-        int healthyHostNum = 0;
+        List<String> addrs = healthyAddrs;
+        if (addrs.isEmpty()) {
+            checkUnhealthyAddrs();
+            return null;
+        }
 
-        ReentrantReadWriteLock.ReadLock l = addrsLock.readLock();
-        l.lock();
-        try {
-            healthyHostNum = healthyAddrs.size();
-            if (healthyHostNum <= 0) {
-                return null;
+        String addr = balancer.select(addrs);
+        if (circuitBreakerConfig == null || allowRequest(addr)) {
+            return addr;
+        }
+
+        // the balancer keeps picking open circuits only when most of them are, so walk them all
+        int n = addrs.size();
+        int start = addrs.indexOf(addr);
+        for (int i = 1; i < n; i++) {
+            addr = addrs.get((start + i) % n);
+            if (allowRequest(addr)) {
+                return addr;
             }
+        }
+        return null;
+    }
+
+    @Override
+    public Collection<String> healthyAddress() {
+        List<String> addrs = healthyAddrs;
+        if (openCircuits.get() == 0) {
+            return addrs;
+        }
+
+        List<String> closed = new ArrayList<String>(addrs.size());
+        for (String addr : addrs) {
+            CircuitBreaker breaker = circuitBreakers.get(addr);
+            if (breaker == null || breaker.getState() != CircuitBreaker.State.OPEN) {
+                closed.add(addr);
+            }
+        }
+        return Collections.unmodifiableList(closed);
+    }
+
+    @Override
+    public void serviceDown(String addr) {
+        // confirmed off the caller thread, which is often a netty or writer thread
+        check(addr, downCallback);
+    }
 
-            int i, j;
-            do {
-                i = iter.get();
-                j = (i + 1) % healthyHostNum;
-            } while (!iter.compareAndSet(i, j));
+    private void markDown(String addr) {
+        ReentrantReadWriteLock.WriteLock l = addrsLock.writeLock();
 
-            return healthyAddrs.get(j);
+        l.lock();
+        try {
+            // already down, or removed while it was being checked
+            if (!healthyAddrs.contains(addr)) {
+                return;
+            }
+            List<String> addrs = new ArrayList<String>(healthyAddrs);
+            addrs.remove(addr);
+            healthyAddrs = snapshot(addrs);
+            unhealthyAddrs.add(addr);
         } finally {
             l.unlock();
-            if (healthyHostNum <= 0) {
-                checkUnhealthyAddrs();
-            }
+        }
+
+        log.info("service {} down", addr);
+        for (ServiceAddrObserver o : observers) {
+            o.addrDown(addr);
         }
     }
 
     @Override
-    public Collection<String> healthyAddress() {
-        return healthyAddrs == null ? Collections.<String>emptyList() : Collections.unmodifiableList(healthyAddrs);
+    public void onRequest(String addr) {
+        balancer.onRequest(addr);
     }
 
     @Override
-    public void serviceDown(String addr) {
-        if (ping(addr)) {
+    public void onResponse(String addr, long latencyNanos, boolean succeed) {
+        balancer.onResponse(addr, latencyNanos, succeed);
+
+        CircuitBreakerConfig config = circuitBreakerConfig;
+        if (config == null) {
             return;
         }
 
-        log.info("service {} down", addr);
-        ReentrantReadWriteLock.WriteLock l = addrsLock.writeLock();
+        CircuitBreaker breaker = circuitBreakers.get(addr);
+        if (breaker == null) {
+            if (!isMember(addr)) {
+                // a late response of a removed addr
+                return;
+            }
+            breaker = new CircuitBreaker(config);
+            CircuitBreaker old = circuitBreakers.putIfAbsent(addr, breaker);
+            if (old != null) {
+                breaker = old;
+            }
+        }
+
+        CircuitBreaker.State state = breaker.onResult(succeed);
+        if (state == CircuitBreaker.State.OPEN) {
+            circuitOpened(addr, breaker, config);
+        } else if (state == CircuitBreaker.State.CLOSED) {
+            log.info("circuit of {} closed", addr);
+        }
+    }
 
+    private boolean isMember(String addr) {
+        ReentrantReadWriteLock.ReadLock l = addrsLock.readLock();
         l.lock();
         try {
-            healthyAddrs.remove(addr);
-            unhealthyAddrs.add(addr);
+            return healthyAddrs.contains(addr) || unhealthyAddrs.contains(addr);
         } finally {
             l.unlock();
         }
+    }
+
+    // only the one moving a breaker out of OPEN gives its count back, so a removed breaker is half-opened here
+    private void dropCircuit(String addr) {
+        CircuitBreaker breaker = circuitBreakers.remove(addr);
+        if (breaker != null && breaker.halfOpen()) {
+            openCircuits.decrementAndGet();
+        }
+    }
+
+    private boolean allowRequest(String addr) {
+        CircuitBreaker breaker = circuitBreakers.get(addr);
+        return breaker == null || breaker.allowRequest();
+    }
+
+    private void circuitOpened(final String addr, final CircuitBreaker breaker, CircuitBreakerConfig config) {
+        log.warn("circuit of {} opened", addr);
+        openCircuits.incrementAndGet();
 
         for (ServiceAddrObserver o : observers) {
             o.addrDown(addr);
         }
+
+        Runnable halfOpen = new Runnable() {
+            @Override
+            public void run() {
+                if (!breaker.halfOpen()) {
+                    return;
+                }
+                openCircuits.decrementAndGet();
+                if (!isMember(addr)) {
+                    // a late response of a removed addr opened it
+                    circuitBreakers.remove(addr, breaker);
+                    return;
+                }
+                if (circuitBreakers.get(addr) == breaker) {
+                    log.info("circuit of {} half-opened", addr);
+
+                    for (ServiceAddrObserver o : observers) {
+                        o.addrRecover(addr);
+                    }
+                }
+            }
+        };
+
+        try {
+            schedule(halfOpen, config.getOpenMillis(), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            halfOpen.run();
+        }
+    }
+
+    /**
+     * Enables a circuit breaker on every addr fed by request outcomes, null disables it.
+     * Opening a circuit is reported as addrDown to the observers and half-opening it as addrRecover.
+     */
+    public void setCircuitBreakerConfig(CircuitBreakerConfig circuitBreakerConfig) {
+        this.circuitBreakerConfig = circuitBreakerConfig;
+        if (circuitBreakerConfig == null) {
+            for (String addr : new ArrayList<String>(circuitBreakers.keySet())) {
+                dropCircuit(addr);
+            }
+        }
+    }
+
+    public void setBalancer(Balancer balancer) {
+        this.balancer = balancer;
+    }
+
+    @Override
+    public void setHealthChecker(HealthChecker healthChecker, int downThreshold, int upThreshold) {
+        Assert.notNull(healthChecker);
+        Assert.isPositive(downThreshold);
+        Assert.isPositive(upThreshold);
+
+        HealthChecker old = this.healthChecker;
+        this.healthChecker = healthChecker;
+        this.downThreshold = downThreshold;
+        this.upThreshold = upThreshold;
+        if (old != healthChecker) {
+            old.close();
+        }
+    }
+
+    /**
+     * Pause between the checks confirming that an addr reported by serviceDown is really down.
+     */
+    public void setRecheckInterval(long interval, TimeUnit unit) {
+        Assert.isPositive(interval);
+        this.recheckIntervalMillis = unit.toMillis(interval);
     }
 
     public void serviceRecover(String addr) {
@@ -131,10 +289,11 @@ public class StaticServiceAddrProvider implements ServiceAddrProvider {
         l.lock();
         try {
             if (!healthyAddrs.contains(addr)) {
-                healthyAddrs.add(addr);
+                List<String> addrs = new ArrayList<String>(healthyAddrs);
+                addrs.add(addr);
+                healthyAddrs = shuffledSnapshot(addrs);
             }
             unhealthyAddrs.remove(addr);
-            Collections.shuffle(healthyAddrs);
         } finally {
             l.unlock();
         }
@@ -146,7 +305,7 @@ public class StaticServiceAddrProvider implements ServiceAddrProvider {
 
     @Override
     public void watch() {
-        watcher.scheduleWithFixedDelay(new Runnable() {
+        scheduleWithFixedDelay(new Runnable() {
             @Override
             public void run() {
                 try {
@@ -159,57 +318,236 @@ public class StaticServiceAddrProvider implements ServiceAddrProvider {
         }, 0, checkInterval, checkTimeUnit);
     }
 
+    @Override
+    public void watch(ScheduledExecutorService scheduler) {
+        ScheduledExecutorService own = this.watcher;
+        this.watcher = scheduler;
+        this.sharedWatcher = true;
+        own.shutdownNow();
+
+        // rechecks waiting on the old scheduler are gone with it, their addrs may be checked again
+        for (CheckState state : checkStates.values()) {
+            state.checking.set(false);
+        }
+
+        watch();
+    }
+
     @Override
     public void stopWatch() {
-        watcher.shutdownNow();
+        ScheduledFuture<?> f;
+        while ((f = watchTasks.poll()) != null) {
+            f.cancel(false);
+        }
+        if (!sharedWatcher) {
+            watcher.shutdownNow();
+        }
+        healthChecker.close();
+    }
+
+    protected ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return track(watcher.schedule(task, delay, unit));
+    }
+
+    protected ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, long initialDelay, long delay, TimeUnit unit) {
+        return track(watcher.scheduleWithFixedDelay(task, initialDelay, delay, unit));
+    }
+
+    private ScheduledFuture<?> track(ScheduledFuture<?> f) {
+        for (Iterator<ScheduledFuture<?>> it = watchTasks.iterator(); it.hasNext(); ) {
+            if (it.next().isDone()) {
+                it.remove();
+            }
+        }
+        watchTasks.add(f);
+        return f;
     }
 
     private void checkUnhealthyAddrs() {
-        Set<String> toRecover = new HashSet<String>();
+        List<String> toCheck;
 
         ReentrantReadWriteLock.ReadLock l = addrsLock.readLock();
         l.lock();
-
         try {
-            log.debug("unhealthy addrs:", unhealthyAddrs.toArray());
-            for (String addr : unhealthyAddrs) {
-                if (ping(addr)) {
-                    toRecover.add(addr);
-                }
-            }
+            log.debug("unhealthy addrs: {}", unhealthyAddrs);
+            toCheck = new ArrayList<String>(unhealthyAddrs);
         } finally {
             l.unlock();
         }
 
-        for (String addr : toRecover) {
-            serviceRecover(addr);
+        // all in parallel, results come back on the checker's threads
+        for (String addr : toCheck) {
+            check(addr, upCallback);
         }
     }
 
-    @Override
-    public void addObserver(ServiceAddrObserver observer) {
-        observers.add(observer);
+    private void check(String addr, HealthChecker.Callback callback) {
+        CheckState state = checkStates.get(addr);
+        if (state == null) {
+            state = new CheckState();
+            CheckState old = checkStates.putIfAbsent(addr, state);
+            if (old != null) {
+                state = old;
+            }
+        }
+
+        // at most one check of an addr is in flight
+        if (state.checking.compareAndSet(false, true)) {
+            recheck(addr, state, callback);
+        }
     }
 
-    private boolean ping(String addr) {
-        String[] s = addr.split(":");
-        if (s.length != 2) {
-            throw new RuntimeException("invalid format of addr");
+    private void recheck(String addr, CheckState state, HealthChecker.Callback callback) {
+        try {
+            healthChecker.check(addr, callback);
+        } catch (Exception e) {
+            state.checking.set(false);
+            log.error("failed to check " + addr, e);
         }
+    }
 
-        SocketAddress address = new InetSocketAddress(s[0], Integer.parseInt(s[1]));
-        Socket socket = new Socket();
+    private void scheduleRecheck(final String addr, final CheckState state, final HealthChecker.Callback callback) {
+        try {
+            schedule(new Runnable() {
+                @Override
+                public void run() {
+                    recheck(addr, state, callback);
+                }
+            }, recheckIntervalMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // stopped watching
+            state.checking.set(false);
+        }
+    }
+
+    private final HealthChecker.Callback downCallback = new HealthChecker.Callback() {
+        @Override
+        public void onResult(String addr, boolean healthy) {
+            CheckState state = checkStates.get(addr);
+            if (state == null) {
+                // removed while it was being checked
+                return;
+            }
+            state.successes = 0;
+            if (healthy) {
+                state.fails = 0;
+                state.checking.set(false);
+                return;
+            }
+
+            if (++state.fails < downThreshold) {
+                scheduleRecheck(addr, state, this);
+                return;
+            }
 
+            state.fails = 0;
+            state.checking.set(false);
+            markDown(addr);
+        }
+    };
+
+    private final HealthChecker.Callback upCallback = new HealthChecker.Callback() {
+        @Override
+        public void onResult(String addr, boolean healthy) {
+            CheckState state = checkStates.get(addr);
+            if (state == null) {
+                // removed while it was being checked
+                return;
+            }
+            state.fails = 0;
+            if (!healthy) {
+                state.successes = 0;
+                state.checking.set(false);
+                return;
+            }
+
+            boolean recover = ++state.successes >= upThreshold;
+            if (recover) {
+                state.successes = 0;
+            }
+            state.checking.set(false);
+
+            if (recover) {
+                serviceRecover(addr);
+            }
+        }
+    };
+
+    // counters are only touched by the single check in flight
+    private static class CheckState {
+        private final AtomicBoolean checking = new AtomicBoolean(false);
+        private volatile int fails;
+        private volatile int successes;
+    }
+
+    /**
+     * Replaces the membership with addrs, keeping the health of the addrs that stay,
+     * and tells the observers which addrs were added and removed.
+     */
+    protected void updateAddrs(Collection<String> addrs) {
+        Set<String> added = new HashSet<String>(addrs);
+        Set<String> removed = new HashSet<String>();
+
+        ReentrantReadWriteLock.WriteLock l = addrsLock.writeLock();
+        l.lock();
         try {
-            try {
-                socket.connect(address, 300);
-                return socket.isConnected();
-            } finally {
-                socket.close();
+            List<String> healthy = new ArrayList<String>(added.size());
+            for (String addr : healthyAddrs) {
+                if (added.remove(addr)) {
+                    healthy.add(addr);
+                } else {
+                    removed.add(addr);
+                }
+            }
+            for (Iterator<String> it = unhealthyAddrs.iterator(); it.hasNext(); ) {
+                String addr = it.next();
+                if (!added.remove(addr)) {
+                    removed.add(addr);
+                    it.remove();
+                }
             }
-        } catch (IOException e) {
 
+            if (added.isEmpty() && removed.isEmpty()) {
+                return;
+            }
+            healthy.addAll(added);
+            healthyAddrs = shuffledSnapshot(healthy);
+        } finally {
+            l.unlock();
+        }
+
+        for (String addr : removed) {
+            checkStates.remove(addr);
+            dropCircuit(addr);
+        }
+        balancer.retain(addrs);
+
+        log.info("addrs added: {}, removed: {}", added, removed);
+        notifyAddrsChanged(Collections.unmodifiableSet(added), Collections.unmodifiableSet(removed));
+    }
+
+    protected void notifyAddrsChanged(Set<String> added, Set<String> removed) {
+        for (ServiceAddrObserver o : observers) {
+            if (o instanceof ServiceAddrDiffObserver) {
+                ((ServiceAddrDiffObserver) o).addrsChanged(added, removed);
+            } else {
+                o.addrChanged();
+            }
         }
-        return false;
+    }
+
+    protected static List<String> snapshot(Collection<String> addrs) {
+        return Collections.unmodifiableList(Arrays.asList(addrs.toArray(new String[0])));
+    }
+
+    protected static List<String> shuffledSnapshot(Collection<String> addrs) {
+        String[] a = addrs.toArray(new String[0]);
+        Collections.shuffle(Arrays.asList(a));
+        return Collections.unmodifiableList(Arrays.asList(a));
+    }
+
+    @Override
+    public void addObserver(ServiceAddrObserver observer) {
+        observers.add(observer);
     }
 }
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2019 The Baudtime Authors
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.baudtime.discovery;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Picks addrs at random in proportion to their weights, addrs without a weight count as 1.
+ * Cumulative weights are computed once per snapshot of addrs, so selection is a binary search.
+ */
+public class WeightedBalancer implements Balancer {
+    private final ThreadLocal<Random> random = new ThreadLocal<Random>() {
+        @Override
+        protected Random initialValue() {
+            return new Random();
+        }
+    };
+
+    private volatile Map<String, Integer> weights = Collections.emptyMap();
+    private volatile Cumulative cumulative;
+
+    public void setWeights(Map<String, Integer> weights) {
+        this.weights = weights;
+        this.cumulative = null;
+    }
+
+    @Override
+    public String select(List<String> addrs) {
+        Cumulative c = cumulative;
+        Map<String, Integer> w = weights;
+        if (c == null || c.addrs != addrs || c.weights != w) {
+            c = new Cumulative(addrs, w);
+            cumulative = c;
+        }
+
+        if (c.total <= 0) {
+            return addrs.get(random.get().nextInt(addrs.size()));
+        }
+
+        // first addr whose cumulative weight reaches r, so addrs weighted 0 are never picked
+        int r = random.get().nextInt(c.total) + 1;
+        int lo = 0, hi = c.sums.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (c.sums[mid] < r) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return addrs.get(lo);
+    }
+
+    @Override
+    public void onRequest(String addr) {
+    }
+
+    @Override
+    public void onResponse(String addr, long latencyNanos, boolean succeed) {
+    }
+
+    @Override
+    public void retain(Collection<String> addrs) {
+    }
+
+    private static class Cumulative {
+        private final List<String> addrs;
+        private final Map<String, Integer> weights;
+        private final int[] sums;
+        private final int total;
+
+        private Cumulative(List<String> addrs, Map<String, Integer> weights) {
+            this.addrs = addrs;
+            this.weights = weights;
+            this.sums = new int[addrs.size()];
+
+            int sum = 0;
+            for (int i = 0; i < sums.length; i++) {
+                Integer weight = weights.get(addrs.get(i));
+                sum += weight == null ? 1 : Math.max(weight, 0);
+                sums[i] = sum;
+            }
+            this.total = sum;
+        }
+    }
+}
@@ -32,6 +32,10 @@ public class AddRequest implements BaudMessage {
         this.series = series;
     }
 
+    public int seriesNum() {
+        return series.size();
+    }
+
     public byte[] marshal() {
         MessageBufferPacker packer = MessagePack.newDefaultBufferPacker();
         try {
@@ -119,20 +123,58 @@ public class AddRequest implements BaudMessage {
         return new Builder().withMerge();
     }
 
+    public static Builder newBuilder(int expectedSeries) {
+        return new Builder(expectedSeries).withMerge();
+    }
+
+    /**
+     * Upper bound of the msgpack bytes the series takes in an AddRequest, assuming ascii labels.
+     */
+    public static int estimateEncodedSize(Series series) {
+        List<Label> labels = series.rawLabels();
+
+        int size = 1 + 5 + 5;
+        for (int i = 0; i < labels.size(); i++) {
+            Label l = labels.get(i);
+            size += 1 + 5 + l.getName().length() + 5 + l.getValue().length();
+        }
+        return size + series.rawPoints().size() * POINT_ENCODED_SIZE;
+    }
+
+    private static final int POINT_ENCODED_SIZE = 1 + 9 + 9;
+
     public static class Builder {
 
-        private List<Series> toBuild = new LinkedList<Series>();
+        private Series[] toBuild;
+        private int seriesNum;
         private int size;
+        private int bytes;
         private boolean withMerge;
+        private SeriesTable table;
+
+        public Builder() {
+            this(16);
+        }
+
+        public Builder(int expectedSeries) {
+            toBuild = new Series[Math.max(expectedSeries, 1)];
+        }
 
         public Builder addSeries(Series series) {
-            toBuild.add(series);
-            size += series.getPoints().size();
+            if (seriesNum == toBuild.length) {
+                toBuild = Arrays.copyOf(toBuild, seriesNum * 2);
+            }
+            toBuild[seriesNum++] = series;
+            size += series.rawPoints().size();
+            bytes += estimateEncodedSize(series);
 
             return this;
         }
 
         public Builder addSeries(Iterable<Series> series) {
+            if (series instanceof Collection) {
+                ensureCapacity(seriesNum + ((Collection) series).size());
+            }
             for (Series s : series) {
                 addSeries(s);
             }
@@ -145,115 +187,214 @@ public class AddRequest implements BaudMessage {
             return this;
         }
 
+        public boolean isWithMerge() {
+            return withMerge;
+        }
+
         public int size() {
             return size;
         }
 
-        public AddRequest build() {
-            if (!withMerge) {
-                return new AddRequest(toBuild);
-            }
-
-            Map<String, Series.Builder> buf = new HashMap<String, Series.Builder>();
-            for (Series series : toBuild) {
-                List<Label> lbls = series.getLabels();
-
-                StringBuilder sb = new StringBuilder();
-                for (int i = 0; i < lbls.size(); i++) {
-                    if (i > 0) {
-                        sb.append(',');
-                    }
-                    sb.append(lbls.get(i).getName());
-                    sb.append('=');
-                    sb.append(lbls.get(i).getValue());
-                }
-                String k = sb.toString();
+        public int seriesNum() {
+            return seriesNum;
+        }
 
-                Series.Builder seriesBuilder = buf.get(k);
-                if (seriesBuilder == null) {
-                    seriesBuilder = Series.newBuilder().noLabelNameCheck();
-                    seriesBuilder.addLabels(lbls);
-                    buf.put(k, seriesBuilder);
-                }
-                seriesBuilder.addPoints(series.getPoints());
-            }
+        public int estimatedBytes() {
+            return bytes;
+        }
 
+        public AddRequest build() {
             try {
-                ArrayList<Series> series = new ArrayList<Series>();
-
-                for (Map.Entry<String, Series.Builder> e : buf.entrySet()) {
-                    series.add(e.getValue().fastBuild());
+                if (!withMerge) {
+                    return new AddRequest(Arrays.asList(Arrays.copyOf(toBuild, seriesNum)));
                 }
 
-                return new AddRequest(series);
+                if (table == null) {
+                    table = new SeriesTable();
+                }
+                return new AddRequest(table.merge(toBuild, seriesNum));
             } finally {
                 clear();
             }
         }
 
         public void clear() {
-            toBuild = new LinkedList<Series>();
+            Arrays.fill(toBuild, 0, seriesNum, null);
+            seriesNum = 0;
             size = 0;
+            bytes = 0;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > toBuild.length) {
+                toBuild = Arrays.copyOf(toBuild, Math.max(capacity, toBuild.length * 2));
+            }
         }
     }
 
+    /**
+     * Collects series from many builders and merges the ones with the same labels, it can be reused after build.
+     */
     public static class MergedBuilder {
-        private final List<Builder> builders = new LinkedList<Builder>();
-        private int size;
+        private final Builder merged;
+        private final SeriesTable table = new SeriesTable();
+
+        public MergedBuilder() {
+            this(64);
+        }
+
+        public MergedBuilder(int expectedSeries) {
+            merged = new Builder(expectedSeries);
+        }
 
         public MergedBuilder merge(Builder builder) {
-            builders.add(builder);
-            size += builder.size();
+            merged.ensureCapacity(merged.seriesNum + builder.seriesNum);
+            System.arraycopy(builder.toBuild, 0, merged.toBuild, merged.seriesNum, builder.seriesNum);
+            merged.seriesNum += builder.seriesNum;
+            merged.size += builder.size;
+            merged.bytes += builder.bytes;
+            return this;
+        }
+
+        public MergedBuilder addSeries(Series series) {
+            merged.addSeries(series);
             return this;
         }
 
         public int size() {
-            return size;
+            return merged.size();
+        }
+
+        public int seriesNum() {
+            return merged.seriesNum();
+        }
+
+        /**
+         * Estimated encoded size, series with the same labels are counted repeatedly so this never underestimates.
+         */
+        public int estimatedBytes() {
+            return merged.estimatedBytes();
         }
 
         public AddRequest build() {
-            Map<String, Series.Builder> buf = new HashMap<String, Series.Builder>();
-            for (Builder builder : builders) {
-                for (Series series : builder.toBuild) {
-                    List<Label> lbls = series.getLabels();
-
-                    StringBuilder sb = new StringBuilder();
-                    for (int i = 0; i < lbls.size(); i++) {
-                        if (i > 0) {
-                            sb.append(',');
-                        }
-                        sb.append(lbls.get(i).getName());
-                        sb.append('=');
-                        sb.append(lbls.get(i).getValue());
+            try {
+                return new AddRequest(table.merge(merged.toBuild, merged.seriesNum));
+            } finally {
+                clear();
+            }
+        }
+
+        public void clear() {
+            merged.clear();
+        }
+    }
+
+    /**
+     * Open addressing table which groups series by labels, keyed by the precomputed series hash.
+     * The index arrays only grow and are reused by later merges.
+     */
+    private static class SeriesTable {
+        private int[] slots = new int[0];   // index + 1 of the first series of a group, 0 means empty
+        private int[] next = new int[0];    // next series index of the same group, -1 means the end
+        private int[] tail = new int[0];    // last series index of the group, only valid for the first one
+        private int[] groupSize = new int[0];
+
+        private List<Series> merge(Series[] series, int n) {
+            int mask = prepare(n);
+            int groups = 0;
+
+            for (int i = 0; i < n; i++) {
+                Series s = series[i];
+                int h = s.hash();
+                int k = mix(h) & mask;
+
+                while (true) {
+                    int head = slots[k] - 1;
+                    if (head < 0) {
+                        slots[k] = i + 1;
+                        next[i] = -1;
+                        tail[i] = i;
+                        groupSize[i] = 1;
+                        groups++;
+                        break;
                     }
-                    String k = sb.toString();
 
-                    Series.Builder seriesBuilder = buf.get(k);
-                    if (seriesBuilder == null) {
-                        seriesBuilder = Series.newBuilder();
-                        seriesBuilder.addLabels(lbls);
-                        buf.put(k, seriesBuilder);
+                    Series hs = series[head];
+                    if (hs.hash() == h && sameLabels(hs.rawLabels(), s.rawLabels())) {
+                        next[tail[head]] = i;
+                        next[i] = -1;
+                        tail[head] = i;
+                        groupSize[head]++;
+                        groupSize[i] = 0;
+                        break;
                     }
-                    seriesBuilder.addPoints(series.getPoints());
+                    k = (k + 1) & mask;
                 }
             }
 
-            try {
-                ArrayList<Series> series = new ArrayList<Series>();
+            List<Series> out = new ArrayList<Series>(groups);
+            for (int i = 0; i < n; i++) {
+                int gs = groupSize[i];
+                if (gs == 1) {
+                    out.add(series[i]);
+                } else if (gs > 1) {
+                    int pointNum = 0;
+                    for (int j = i; j >= 0; j = next[j]) {
+                        pointNum += series[j].rawPoints().size();
+                    }
 
-                for (Map.Entry<String, Series.Builder> e : buf.entrySet()) {
-                    series.add(e.getValue().fastBuild());
+                    List<Point> points = new ArrayList<Point>(pointNum);
+                    for (int j = i; j >= 0; j = next[j]) {
+                        points.addAll(series[j].rawPoints());
+                    }
+                    out.add(new Series(series[i], points));
                 }
+            }
 
-                return new AddRequest(series);
-            } finally {
-                clear();
+            Arrays.fill(slots, 0, mask + 1, 0);
+            return out;
+        }
+
+        private int prepare(int n) {
+            int tableSize = 2;
+            while (tableSize < 2 * n) {
+                tableSize <<= 1;
+            }
+
+            if (slots.length < tableSize) {
+                slots = new int[tableSize];
             }
+            if (next.length < n) {
+                int capacity = Math.max(n, next.length * 2);
+                next = new int[capacity];
+                tail = new int[capacity];
+                groupSize = new int[capacity];
+            }
+            return tableSize - 1;
         }
 
-        public void clear() {
-            builders.clear();
-            size = 0;
+        private static int mix(int h) {
+            h ^= (h >>> 16);
+            h *= 0x85ebca6b;
+            h ^= (h >>> 13);
+            return h;
+        }
+
+        private static boolean sameLabels(List<Label> a, List<Label> b) {
+            if (a == b) {
+                return true;
+            }
+            if (a.size() != b.size()) {
+                return false;
+            }
+            for (int i = 0; i < a.size(); i++) {
+                Label la = a.get(i);
+                Label lb = b.get(i);
+                if (!la.getName().equals(lb.getName()) || !la.getValue().equals(lb.getValue())) {
+                    return false;
+                }
+            }
+            return true;
         }
     }
 }
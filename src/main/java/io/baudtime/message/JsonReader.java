@@ -0,0 +1,261 @@
+/*
+ * Copyright 2019 The Baudtime Authors
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.baudtime.message;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A pull reader over the utf-8 bytes of a json document, values are read one at a time and never kept.
+ */
+class JsonReader {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final byte[] buf;
+    private final int end;
+    private int pos;
+    private char[] chars = new char[32];
+
+    JsonReader(byte[] buf) {
+        this(buf, 0, buf.length);
+    }
+
+    JsonReader(byte[] buf, int from, int to) {
+        this.buf = buf;
+        this.pos = from;
+        this.end = to;
+    }
+
+    int position() {
+        return pos;
+    }
+
+    void position(int pos) {
+        this.pos = pos;
+    }
+
+    byte peek() {
+        skipWhitespace();
+        if (pos >= end) {
+            throw new Exceptions.UnmarshalException("unexpected end of json");
+        }
+        return buf[pos];
+    }
+
+    void expect(char c) {
+        if (peek() != c) {
+            throw new Exceptions.UnmarshalException("expect '" + c + "' at " + pos);
+        }
+        pos++;
+    }
+
+    /**
+     * After '{' or '[' and after every member or element, whether another one follows, eats the separator.
+     */
+    boolean hasNext() {
+        byte b = peek();
+        if (b == ',') {
+            pos++;
+            return true;
+        }
+        return b != '}' && b != ']';
+    }
+
+    String nextName() {
+        String name = nextString();
+        expect(':');
+        return name;
+    }
+
+    String nextString() {
+        expect('"');
+        int n = 0;
+        int start = pos;
+        boolean ascii = true;
+        while (true) {
+            if (pos >= end) {
+                throw new Exceptions.UnmarshalException("unterminated json string");
+            }
+            byte b = buf[pos];
+            if (b == '"') {
+                break;
+            }
+            if (b < 0) {
+                ascii = false;
+            }
+            if (b == '\\') {
+                return nextEscapedString(start);
+            }
+            if (n == chars.length) {
+                chars = Arrays.copyOf(chars, n * 2);
+            }
+            chars[n++] = (char) b;
+            pos++;
+        }
+        pos++;
+        return ascii ? new String(chars, 0, n) : new String(buf, start, pos - 1 - start, UTF8);
+    }
+
+    // the slow path, starts over from the opening quote
+    private String nextEscapedString(int start) {
+        StringBuilder b = new StringBuilder();
+        int runStart = start;
+        pos = start;
+        while (true) {
+            if (pos >= end) {
+                throw new Exceptions.UnmarshalException("unterminated json string");
+            }
+            byte c = buf[pos];
+            if (c == '"') {
+                b.append(new String(buf, runStart, pos - runStart, UTF8));
+                pos++;
+                return b.toString();
+            }
+            if (c != '\\') {
+                pos++;
+                continue;
+            }
+
+            b.append(new String(buf, runStart, pos - runStart, UTF8));
+            byte e = buf[pos + 1];
+            pos += 2;
+            switch (e) {
+                case 'b':
+                    b.append('\b');
+                    break;
+                case 'f':
+                    b.append('\f');
+                    break;
+                case 'n':
+                    b.append('\n');
+                    break;
+                case 'r':
+                    b.append('\r');
+                    break;
+                case 't':
+                    b.append('\t');
+                    break;
+                case 'u':
+                    b.append((char) Integer.parseInt(new String(buf, pos, 4, UTF8), 16));
+                    pos += 4;
+                    break;
+                default:
+                    b.append((char) e);
+            }
+            runStart = pos;
+        }
+    }
+
+    /**
+     * A json number of seconds as millis, digits beyond millis are dropped.
+     */
+    long nextSecondsAsMillis() {
+        skipWhitespace();
+        boolean negative = false;
+        if (pos < end && buf[pos] == '-') {
+            negative = true;
+            pos++;
+        }
+        long millis = 0;
+        while (pos < end && buf[pos] >= '0' && buf[pos] <= '9') {
+            millis = millis * 10 + (buf[pos++] - '0');
+        }
+        millis *= 1000;
+        if (pos < end && buf[pos] == '.') {
+            pos++;
+            int scale = 100;
+            while (pos < end && buf[pos] >= '0' && buf[pos] <= '9') {
+                millis += scale * (buf[pos++] - '0');
+                scale /= 10;
+            }
+        }
+        if (pos < end && (buf[pos] == 'e' || buf[pos] == 'E')) {
+            throw new Exceptions.UnmarshalException("exponent in timestamp is not supported");
+        }
+        return negative ? -millis : millis;
+    }
+
+    /**
+     * A sample value, which prometheus writes as a string, "+Inf", "-Inf" and "NaN" included.
+     */
+    double nextValue() {
+        String s = peek() == '"' ? nextString() : nextLiteral();
+        if ("+Inf".equals(s)) {
+            return Double.POSITIVE_INFINITY;
+        }
+        if ("-Inf".equals(s)) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        return Double.parseDouble(s);
+    }
+
+    private String nextLiteral() {
+        int start = pos;
+        while (pos < end && ",}] \t\r\n".indexOf(buf[pos]) < 0) {
+            pos++;
+        }
+        return new String(buf, start, pos - start, UTF8);
+    }
+
+    void skipValue() {
+        byte b = peek();
+        if (b == '"') {
+            skipString();
+            return;
+        }
+        if (b == '{' || b == '[') {
+            int depth = 0;
+            for (; pos < end; pos++) {
+                b = buf[pos];
+                if (b == '"') {
+                    skipString();
+                    pos--;
+                } else if (b == '{' || b == '[') {
+                    depth++;
+                } else if ((b == '}' || b == ']') && --depth == 0) {
+                    pos++;
+                    return;
+                }
+            }
+            throw new Exceptions.UnmarshalException("unterminated json value");
+        }
+        nextLiteral();
+    }
+
+    private void skipString() {
+        pos++;
+        while (pos < end) {
+            byte b = buf[pos++];
+            if (b == '\\') {
+                pos++;
+            } else if (b == '"') {
+                return;
+            }
+        }
+        throw new Exceptions.UnmarshalException("unterminated json string");
+    }
+
+    private void skipWhitespace() {
+        while (pos < end) {
+            byte b = buf[pos];
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                return;
+            }
+            pos++;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2019 The Baudtime Authors
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.baudtime.message;
+
+import java.math.BigDecimal;
+
+/**
+ * Writes query results back in the json format of the server, the counterpart of {@link JsonReader}.
+ */
+class JsonWriter {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final StringBuilder b;
+
+    JsonWriter(int capacity) {
+        this.b = new StringBuilder(capacity);
+    }
+
+    JsonWriter raw(String s) {
+        b.append(s);
+        return this;
+    }
+
+    JsonWriter raw(char c) {
+        b.append(c);
+        return this;
+    }
+
+    JsonWriter string(String s) {
+        b.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    b.append("\\\"");
+                    break;
+                case '\\':
+                    b.append("\\\\");
+                    break;
+                case '\n':
+                    b.append("\\n");
+                    break;
+                case '\r':
+                    b.append("\\r");
+                    break;
+                case '\t':
+                    b.append("\\t");
+                    break;
+                default:
+                    // like the server's encoder: control and html characters and line separators are escaped
+                    if (c < 0x20 || c == '<' || c == '>' || c == '&' || c == '\u2028' || c == '\u2029') {
+                        b.append("\\u").append(HEX[c >> 12]).append(HEX[c >> 8 & 0xf]).append(HEX[c >> 4 & 0xf]).append(HEX[c & 0xf]);
+                    } else {
+                        b.append(c);
+                    }
+            }
+        }
+        b.append('"');
+        return this;
+    }
+
+    /**
+     * Millis as a json number of seconds, e.g. 1435781430.781.
+     */
+    JsonWriter secondsOfMillis(long millis) {
+        long sec = millis / 1000;
+        int frac = (int) Math.abs(millis % 1000);
+        if (millis < 0 && sec == 0) {
+            b.append('-');
+        }
+        b.append(sec);
+        if (frac != 0) {
+            b.append('.').append((char) ('0' + frac / 100));
+            if (frac % 100 != 0) {
+                b.append((char) ('0' + frac / 10 % 10));
+                if (frac % 10 != 0) {
+                    b.append((char) ('0' + frac % 10));
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * A sample value as a string the way prometheus formats it, the shortest decimal without exponent.
+     */
+    JsonWriter value(double v) {
+        b.append('"');
+        if (Double.isNaN(v)) {
+            b.append("NaN");
+        } else if (Double.isInfinite(v)) {
+            b.append(v > 0 ? "+Inf" : "-Inf");
+        } else if (v == (long) v && Math.abs(v) < 1e15) {
+            b.append((long) v);
+        } else {
+            b.append(new BigDecimal(Double.toString(v)).stripTrailingZeros().toPlainString());
+        }
+        b.append('"');
+        return this;
+    }
+
+    /**
+     * A [t,"v"] sample.
+     */
+    JsonWriter sample(long t, double v) {
+        b.append('[');
+        secondsOfMillis(t);
+        b.append(',');
+        value(v);
+        b.append(']');
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return b.toString();
+    }
+}
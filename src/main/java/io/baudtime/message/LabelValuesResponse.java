@@ -29,6 +29,15 @@ public class LabelValuesResponse implements BaudMessage {
     private StatusCode status;
     private String errorMsg;
 
+    public LabelValuesResponse() {
+    }
+
+    public LabelValuesResponse(List<String> values, StatusCode status, String errorMsg) {
+        this.values = values;
+        this.status = status;
+        this.errorMsg = errorMsg;
+    }
+
     public List<String> getValues() {
         return values;
     }
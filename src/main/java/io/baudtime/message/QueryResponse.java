@@ -21,16 +21,134 @@ import org.msgpack.core.MessageUnpacker;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 
 public class QueryResponse implements BaudMessage {
-    private String result;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // kept as the utf-8 bytes received, the string is only decoded if asked for
+    private byte[] resultBytes;
+    private volatile String result;
+    private volatile QueryResult queryResult;
     private StatusCode status;
     private String errorMsg;
 
+    public QueryResponse() {
+    }
+
+    public QueryResponse(String result, StatusCode status, String errorMsg) {
+        this.result = result;
+        this.status = status;
+        this.errorMsg = errorMsg;
+    }
+
+    /**
+     * A response holding a result already parsed, its json is only written if asked for.
+     */
+    public QueryResponse(QueryResult queryResult, StatusCode status, String errorMsg) {
+        this.queryResult = queryResult;
+        this.status = status;
+        this.errorMsg = errorMsg;
+    }
+
+    private QueryResponse(byte[] resultBytes, StatusCode status, String errorMsg) {
+        this.resultBytes = resultBytes;
+        this.status = status;
+        this.errorMsg = errorMsg;
+    }
+
+    /**
+     * A response sharing only the result bytes of this one, it decodes and parses them again on its own.
+     */
+    public QueryResponse copy() {
+        return new QueryResponse(resultBytes(), status, errorMsg);
+    }
+
     public String getResult() {
+        if (result == null) {
+            if (resultBytes != null) {
+                result = new String(resultBytes, UTF8);
+            } else if (queryResult != null) {
+                result = queryResult.toJson();
+            }
+        }
         return result;
     }
 
+    public boolean hasResult() {
+        return resultBytes != null || result != null || queryResult != null;
+    }
+
+    public QueryResult.Type getResultType() {
+        QueryResult r = queryResult;
+        return r != null ? r.getType() : resultReader().type();
+    }
+
+    /**
+     * The result parsed into series with primitive sample arrays, parsed on the first call.
+     */
+    public QueryResult getQueryResult() {
+        QueryResult r = queryResult;
+        if (r == null) {
+            r = resultReader().readAll();
+            queryResult = r;
+        }
+        return r;
+    }
+
+    /**
+     * Streams the series of the result, each call parses it again from the start.
+     */
+    public QueryResultReader resultReader() {
+        byte[] b = resultBytes();
+        if (b == null) {
+            throw new IllegalStateException("no result");
+        }
+        return new QueryResultReader(b);
+    }
+
+    public void visitResult(QueryResultVisitor visitor) {
+        QueryResult r = queryResult;
+        if (r == null || resultBytes != null) {
+            resultReader().accept(visitor);
+            return;
+        }
+
+        for (ResultSeries s : r.getSeries()) {
+            if (visitor.onSeries(s.getLabels())) {
+                for (int i = 0; i < s.size(); i++) {
+                    visitor.onSample(s.getTimestamps()[i], s.getValues()[i]);
+                }
+                visitor.onSeriesEnd();
+            }
+        }
+    }
+
+    private byte[] resultBytes() {
+        if (resultBytes == null && getResult() != null) {
+            resultBytes = result.getBytes(UTF8);
+        }
+        return resultBytes;
+    }
+
+    /**
+     * A rough size of what the response holds, in every form the result has been turned into so far.
+     */
+    public int estimatedBytes() {
+        int bytes = 64;
+        if (resultBytes != null) {
+            bytes += resultBytes.length;
+        }
+        if (result != null) {
+            bytes += 2 * result.length();
+        }
+        QueryResult r = queryResult;
+        if (r != null) {
+            bytes += r.estimatedBytes();
+        }
+        return bytes;
+    }
+
     public StatusCode getStatus() {
         return status;
     }
@@ -45,7 +163,9 @@ public class QueryResponse implements BaudMessage {
             packer.packMapHeader(3);
 
             packer.packString("result");
-            packer.packString(result);
+            byte[] b = resultBytes();
+            packer.packRawStringHeader(b.length);
+            packer.writePayload(b);
 
             packer.packString("status");
             packer.packByte(status.value());
@@ -72,7 +192,7 @@ public class QueryResponse implements BaudMessage {
             for (int i = 0; i < size; i++) {
                 String key = unPacker.unpackString();
                 if (key.equals("result")) {
-                    result = unPacker.unpackString();
+                    resultBytes = unPacker.readPayload(unPacker.unpackRawStringHeader());
                 } else if (key.equals("status")) {
                     status = StatusCode.parse(unPacker.unpackByte());
                 } else if (key.equals("errorMsg")) {
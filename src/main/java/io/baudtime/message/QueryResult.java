@@ -0,0 +1,152 @@
+/*
+ * Copyright 2019 The Baudtime Authors
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.baudtime.message;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+public class QueryResult {
+    public enum Type {
+        VECTOR, MATRIX, SCALAR, STRING;
+
+        static Type parse(String s) {
+            if ("vector".equals(s)) {
+                return VECTOR;
+            }
+            if ("matrix".equals(s)) {
+                return MATRIX;
+            }
+            if ("scalar".equals(s)) {
+                return SCALAR;
+            }
+            if ("string".equals(s)) {
+                return STRING;
+            }
+            throw new Exceptions.UnmarshalException("unknown result type " + s);
+        }
+    }
+
+    private final Type type;
+    private final List<ResultSeries> series;
+    private final long time;
+    private final double scalar;
+    private final String string;
+
+    /**
+     * A vector or matrix result.
+     */
+    public QueryResult(Type type, List<ResultSeries> series) {
+        this(type, series, 0, 0, null);
+        if (type != Type.VECTOR && type != Type.MATRIX) {
+            throw new IllegalArgumentException("series of a " + type + " result");
+        }
+    }
+
+    QueryResult(Type type, List<ResultSeries> series, long time, double scalar, String string) {
+        this.type = type;
+        this.series = series == null ? Collections.<ResultSeries>emptyList() : Collections.unmodifiableList(series);
+        this.time = time;
+        this.scalar = scalar;
+        this.string = string;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Series of a vector, each with a single sample, or of a matrix. Empty for scalars and strings.
+     */
+    public List<ResultSeries> getSeries() {
+        return series;
+    }
+
+    /**
+     * Time of a scalar or string result.
+     */
+    public long getTime() {
+        return time;
+    }
+
+    public double getScalar() {
+        return scalar;
+    }
+
+    public String getString() {
+        return string;
+    }
+
+    /**
+     * The result in the json format of the server.
+     */
+    public String toJson() {
+        JsonWriter w = new JsonWriter(64 + series.size() * 128);
+        w.raw("{\"resultType\":").string(type.name().toLowerCase(Locale.ROOT)).raw(",\"result\":");
+        if (type == Type.SCALAR) {
+            return w.sample(time, scalar).raw('}').toString();
+        }
+        if (type == Type.STRING) {
+            return w.raw('[').secondsOfMillis(time).raw(',').string(string).raw("]}").toString();
+        }
+
+        w.raw('[');
+        for (int i = 0; i < series.size(); i++) {
+            if (i > 0) {
+                w.raw(',');
+            }
+            ResultSeries s = series.get(i);
+            w.raw("{\"metric\":{");
+            List<Label> labels = s.getLabels();
+            for (int j = 0; j < labels.size(); j++) {
+                if (j > 0) {
+                    w.raw(',');
+                }
+                w.string(labels.get(j).getName()).raw(':').string(labels.get(j).getValue());
+            }
+            w.raw('}');
+
+            long[] ts = s.getTimestamps();
+            double[] vs = s.getValues();
+            if (type == Type.VECTOR) {
+                w.raw(",\"value\":").sample(ts[0], vs[0]);
+            } else {
+                w.raw(",\"values\":[");
+                for (int j = 0; j < ts.length; j++) {
+                    if (j > 0) {
+                        w.raw(',');
+                    }
+                    w.sample(ts[j], vs[j]);
+                }
+                w.raw(']');
+            }
+            w.raw('}');
+        }
+        return w.raw("]}").toString();
+    }
+
+    int estimatedBytes() {
+        int bytes = 64;
+        for (ResultSeries s : series) {
+            bytes += 64 + 16 * s.size();
+            for (Label l : s.getLabels()) {
+                bytes += 48 + 2 * (l.getName().length() + l.getValue().length());
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2019 The Baudtime Authors
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.baudtime.message;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads the series of a query result one by one straight from its json bytes, the whole document is
+ * never turned into objects. Scalar and string results have no series, their value is read up front.
+ */
+public class QueryResultReader {
+    private final JsonReader json;
+    private final QueryResult.Type type;
+
+    private long time;
+    private double scalar;
+    private String string;
+
+    private final Collector collector = new Collector();
+
+    QueryResultReader(byte[] result) {
+        this.json = new JsonReader(result);
+
+        QueryResult.Type type = null;
+        int resultPos = -1;
+
+        json.expect('{');
+        while (json.hasNext()) {
+            String name = json.nextName();
+            if ("resultType".equals(name)) {
+                type = QueryResult.Type.parse(json.nextString());
+            } else if ("result".equals(name)) {
+                resultPos = json.position();
+                if (type != null) {
+                    break;
+                }
+                json.skipValue();
+            } else {
+                json.skipValue();
+            }
+        }
+        if (type == null || resultPos < 0) {
+            throw new Exceptions.UnmarshalException("bad query result");
+        }
+
+        this.type = type;
+        json.position(resultPos);
+        json.expect('[');
+        if (type == QueryResult.Type.SCALAR || type == QueryResult.Type.STRING) {
+            time = json.nextSecondsAsMillis();
+            json.expect(',');
+            if (type == QueryResult.Type.SCALAR) {
+                scalar = json.nextValue();
+            } else {
+                string = json.nextString();
+            }
+            json.expect(']');
+        }
+    }
+
+    public QueryResult.Type type() {
+        return type;
+    }
+
+    public boolean hasNext() {
+        return (type == QueryResult.Type.VECTOR || type == QueryResult.Type.MATRIX) && json.hasNext();
+    }
+
+    public ResultSeries next() {
+        collector.reset();
+        readSeries(collector);
+        return collector.build();
+    }
+
+    /**
+     * Pushes the remaining series to the visitor without creating sample arrays.
+     */
+    public void accept(QueryResultVisitor visitor) {
+        while (hasNext()) {
+            readSeries(visitor);
+        }
+    }
+
+    public QueryResult readAll() {
+        List<ResultSeries> series = null;
+        if (type == QueryResult.Type.VECTOR || type == QueryResult.Type.MATRIX) {
+            series = new ArrayList<ResultSeries>();
+            while (hasNext()) {
+                series.add(next());
+            }
+        }
+        return new QueryResult(type, series, time, scalar, string);
+    }
+
+    public long time() {
+        return time;
+    }
+
+    public double scalar() {
+        return scalar;
+    }
+
+    public String string() {
+        return string;
+    }
+
+    // {"metric":{...},"values":[[t,"v"],...]} or {"metric":{...},"value":[t,"v"]}
+    private void readSeries(QueryResultVisitor visitor) {
+        json.expect('{');
+        List<Label> labels = null;
+        int samplesPos = -1;
+        boolean accepted = false;
+        while (json.hasNext()) {
+            String name = json.nextName();
+            if ("metric".equals(name)) {
+                labels = readLabels();
+                accepted = visitor.onSeries(labels);
+                if (samplesPos >= 0) {
+                    // samples came before the metric, go back for them
+                    int pos = json.position();
+                    json.position(samplesPos);
+                    readSamples(visitor, accepted);
+                    json.position(pos);
+                }
+            } else if ("values".equals(name) || "value".equals(name)) {
+                if (labels == null) {
+                    samplesPos = json.position();
+                    json.skipValue();
+                } else {
+                    readSamples(visitor, accepted);
+                }
+            } else {
+                json.skipValue();
+            }
+        }
+        json.expect('}');
+
+        if (labels == null) {
+            throw new Exceptions.UnmarshalException("series without metric");
+        }
+        if (accepted) {
+            visitor.onSeriesEnd();
+        }
+    }
+
+    private List<Label> readLabels() {
+        List<Label> labels = new ArrayList<Label>();
+        json.expect('{');
+        while (json.hasNext()) {
+            String name = json.nextName();
+            labels.add(new Label(name, json.nextString()));
+        }
+        json.expect('}');
+        return labels;
+    }
+
+    private void readSamples(QueryResultVisitor visitor, boolean accepted) {
+        if (!accepted) {
+            json.skipValue();
+            return;
+        }
+
+        json.expect('[');
+        if (type == QueryResult.Type.VECTOR) {
+            readSample(visitor);
+            return;
+        }
+        while (json.hasNext()) {
+            json.expect('[');
+            readSample(visitor);
+        }
+        json.expect(']');
+    }
+
+    // after the opening bracket of [t,"v"]
+    private void readSample(QueryResultVisitor visitor) {
+        long t = json.nextSecondsAsMillis();
+        json.expect(',');
+        double v = json.nextValue();
+        json.expect(']');
+        visitor.onSample(t, v);
+    }
+
+    private static class Collector implements QueryResultVisitor {
+        private List<Label> labels;
+        private long[] timestamps = new long[16];
+        private double[] values = new double[16];
+        private int n;
+
+        private void reset() {
+            labels = null;
+            n = 0;
+        }
+
+        @Override
+        public boolean onSeries(List<Label> labels) {
+            this.labels = labels;
+            return true;
+        }
+
+        @Override
+        public void onSample(long timestamp, double value) {
+            if (n == timestamps.length) {
+                timestamps = Arrays.copyOf(timestamps, n * 2);
+                values = Arrays.copyOf(values, n * 2);
+            }
+            timestamps[n] = timestamp;
+            values[n] = value;
+            n++;
+        }
+
+        @Override
+        public void onSeriesEnd() {
+        }
+
+        private ResultSeries build() {
+            return new ResultSeries(labels, Arrays.copyOf(timestamps, n), Arrays.copyOf(values, n));
+        }
+    }
+}
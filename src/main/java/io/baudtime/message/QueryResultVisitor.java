@@ -0,0 +1,34 @@
+/*
+ * Copyright 2019 The Baudtime Authors
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.baudtime.message;
+
+import java.util.List;
+
+/**
+ * Receives the series of a vector or matrix result while it is being parsed, so that results too big
+ * to hold as objects can still be aggregated.
+ */
+public interface QueryResultVisitor {
+    /**
+     * @return false to skip the samples of the series
+     */
+    boolean onSeries(List<Label> labels);
+
+    void onSample(long timestamp, double value);
+
+    void onSeriesEnd();
+}
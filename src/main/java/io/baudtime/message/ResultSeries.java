@@ -0,0 +1,63 @@
+/*
+ * Copyright 2019 The Baudtime Authors
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.baudtime.message;
+
+import java.util.List;
+
+/**
+ * One series of a vector or matrix result, samples are kept in primitive arrays of the same length.
+ */
+public class ResultSeries {
+    private final List<Label> labels;
+    private final long[] timestamps;
+    private final double[] values;
+
+    public ResultSeries(List<Label> labels, long[] timestamps, double[] values) {
+        this.labels = labels;
+        this.timestamps = timestamps;
+        this.values = values;
+    }
+
+    public List<Label> getLabels() {
+        return labels;
+    }
+
+    public String getLabelValue(String name) {
+        for (int i = 0; i < labels.size(); i++) {
+            Label l = labels.get(i);
+            if (l.getName().equals(name)) {
+                return l.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Millis since epoch.
+     */
+    public long[] getTimestamps() {
+        return timestamps;
+    }
+
+    public double[] getValues() {
+        return values;
+    }
+
+    public int size() {
+        return timestamps.length;
+    }
+}
@@ -45,6 +45,15 @@ public class Series {
         this.hashcode = (int) (LongHashFunction.xx().hashChars(sb));
     }
 
+    // shares the sorted labels and the hash of another series, used when merging points of the same series
+    Series(Series sameLabels, List<Point> points) {
+        Collections.sort(points, Point.comparator);
+
+        this.labels = sameLabels.labels;
+        this.points = points;
+        this.hashcode = sameLabels.hashcode;
+    }
+
     public List<Label> getLabels() {
         return Collections.unmodifiableList(labels);
     }
@@ -53,6 +62,14 @@ public class Series {
         return Collections.unmodifiableList(points);
     }
 
+    List<Label> rawLabels() {
+        return labels;
+    }
+
+    List<Point> rawPoints() {
+        return points;
+    }
+
     public int hash() {
         return hashcode;
     }
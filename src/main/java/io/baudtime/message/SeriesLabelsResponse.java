@@ -30,6 +30,15 @@ public class SeriesLabelsResponse implements BaudMessage {
     private StatusCode status;
     private String errorMsg;
 
+    public SeriesLabelsResponse() {
+    }
+
+    public SeriesLabelsResponse(List<List<Label>> labels, StatusCode status, String errorMsg) {
+        this.labels = labels;
+        this.status = status;
+        this.errorMsg = errorMsg;
+    }
+
     public List<List<Label>> getLabels() {
         return labels;
     }
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2019 The Baudtime Authors
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.baudtime.util;
+
+import net.openhft.hashing.LongHashFunction;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.TreeSet;
+
+/**
+ * An immutable hash ring with virtual nodes, when a node joins or leaves only the keys
+ * next to its virtual nodes move.
+ */
+public class ConsistentHashRing {
+    private final String[] nodes;
+    private final int[] points;
+    private final int[] owners;
+
+    public ConsistentHashRing(Collection<String> nodes, int virtualNodes) {
+        Assert.isPositive(virtualNodes);
+
+        // sorted so that rings built from the same members are identical whatever order they come in
+        this.nodes = new TreeSet<String>(nodes).toArray(new String[0]);
+
+        long[] entries = new long[this.nodes.length * virtualNodes];
+        int n = 0;
+        for (int i = 0; i < this.nodes.length; i++) {
+            for (int v = 0; v < virtualNodes; v++) {
+                int point = (int) LongHashFunction.xx().hashChars(this.nodes[i] + "#" + v);
+                // high 32 bits keep the point for sorting, low 32 bits keep the owner
+                entries[n++] = ((long) point << 32) | i;
+            }
+        }
+        Arrays.sort(entries);
+
+        this.points = new int[n];
+        this.owners = new int[n];
+        for (int i = 0; i < n; i++) {
+            points[i] = (int) (entries[i] >> 32);
+            owners[i] = (int) entries[i];
+        }
+    }
+
+    public boolean isEmpty() {
+        return nodes.length == 0;
+    }
+
+    public int nodeNum() {
+        return nodes.length;
+    }
+
+    public String node(int index) {
+        return nodes[index];
+    }
+
+    /**
+     * Index of the node owning the hash, must not be called on an empty ring.
+     */
+    public int indexOf(int hash) {
+        int i = Arrays.binarySearch(points, hash);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        if (i == points.length) {
+            i = 0;
+        }
+        return owners[i];
+    }
+
+    public String get(int hash) {
+        return isEmpty() ? null : nodes[indexOf(hash)];
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2019 The Baudtime Authors
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.baudtime.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded lock-free multi-producer single-consumer ring buffer.
+ * Producers claim a slot by CAS on the producer index and publish the element with an ordered store,
+ * the only consumer frees the slot and advances the consumer index without any CAS.
+ * {@link #poll()} must never be called from more than one thread at a time.
+ */
+public class MpscArrayQueue<E> {
+    private final AtomicReferenceArray<E> buffer;
+    private final int capacity;
+    private final int mask;
+
+    private final PaddedAtomicLong producerIndex = new PaddedAtomicLong();
+    private final PaddedAtomicLong consumerIndex = new PaddedAtomicLong();
+
+    public MpscArrayQueue(int capacity) {
+        Assert.isPositive(capacity);
+
+        int actualCapacity = 1;
+        while (actualCapacity < capacity) {
+            actualCapacity <<= 1;
+        }
+
+        this.buffer = new AtomicReferenceArray<E>(actualCapacity);
+        this.capacity = actualCapacity;
+        this.mask = actualCapacity - 1;
+    }
+
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+
+        long p;
+        do {
+            p = producerIndex.get();
+            if (p - consumerIndex.get() >= capacity) {
+                return false;
+            }
+        } while (!producerIndex.compareAndSet(p, p + 1));
+
+        buffer.lazySet((int) (p & mask), e);
+        return true;
+    }
+
+    /**
+     * Claims up to to - from slots with a single CAS, returns how many elements were enqueued.
+     */
+    public int offer(E[] es, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (es[i] == null) {
+                throw new NullPointerException();
+            }
+        }
+
+        long p;
+        int n;
+        do {
+            p = producerIndex.get();
+            n = (int) Math.min(to - from, capacity - (p - consumerIndex.get()));
+            if (n <= 0) {
+                return 0;
+            }
+        } while (!producerIndex.compareAndSet(p, p + n));
+
+        for (int i = 0; i < n; i++) {
+            buffer.lazySet((int) ((p + i) & mask), es[from + i]);
+        }
+        return n;
+    }
+
+    public E poll() {
+        long c = consumerIndex.get();
+        int offset = (int) (c & mask);
+
+        E e = buffer.get(offset);
+        if (e == null) {
+            if (c == producerIndex.get()) {
+                return null;
+            }
+            // a producer has claimed the slot but not published the element yet
+            do {
+                e = buffer.get(offset);
+            } while (e == null);
+        }
+
+        buffer.lazySet(offset, null);
+        consumerIndex.lazySet(c + 1);
+        return e;
+    }
+
+    public E peek() {
+        long c = consumerIndex.get();
+        int offset = (int) (c & mask);
+
+        E e = buffer.get(offset);
+        if (e == null && c != producerIndex.get()) {
+            do {
+                e = buffer.get(offset);
+            } while (e == null);
+        }
+        return e;
+    }
+
+    /**
+     * Blocks the producer with the given strategy until there is room, returns false if gave up
+     * because the deadline passed.
+     */
+    public boolean offer(E e, long timeout, TimeUnit unit, WaitStrategy waitStrategy) {
+        if (offer(e)) {
+            return true;
+        }
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int idle = 0;
+        while (!offer(e)) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            idle = waitStrategy.idle(idle);
+        }
+        return true;
+    }
+
+    public E poll(long timeout, TimeUnit unit, WaitStrategy waitStrategy) {
+        E e = poll();
+        if (e != null) {
+            return e;
+        }
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int idle = 0;
+        while ((e = poll()) == null) {
+            if (System.nanoTime() - deadline >= 0) {
+                return null;
+            }
+            idle = waitStrategy.idle(idle);
+        }
+        return e;
+    }
+
+    public int size() {
+        long size = producerIndex.get() - consumerIndex.get();
+        if (size < 0) {
+            return 0;
+        }
+        return size > capacity ? capacity : (int) size;
+    }
+
+    public boolean isEmpty() {
+        return producerIndex.get() == consumerIndex.get();
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    @SuppressWarnings("unused")
+    private static class PaddedAtomicLong extends AtomicLong {
+        private static final long serialVersionUID = -3389186151549702442L;
+
+        // keeps the producer and consumer indexes on different cache lines
+        private long p1, p2, p3, p4, p5, p6, p7;
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2019 The Baudtime Authors
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.baudtime.util;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How a thread waits on an empty or full {@link MpscArrayQueue}.
+ * The counter passed to {@link #idle(int)} is the number of consecutive idle rounds,
+ * callers reset it to 0 once they make progress.
+ */
+public enum WaitStrategy {
+    BUSY_SPIN {
+        @Override
+        public int idle(int counter) {
+            return counter + 1;
+        }
+    },
+    YIELD {
+        @Override
+        public int idle(int counter) {
+            if (counter > SPIN_TRIES) {
+                Thread.yield();
+            }
+            return counter + 1;
+        }
+    },
+    PARK {
+        @Override
+        public int idle(int counter) {
+            if (counter > SPIN_TRIES + YIELD_TRIES) {
+                LockSupport.parkNanos(PARK_NANOS);
+            } else if (counter > SPIN_TRIES) {
+                Thread.yield();
+            }
+            return counter + 1;
+        }
+    };
+
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 100;
+    private static final long PARK_NANOS = 100 * 1000L;
+
+    public abstract int idle(int counter);
+}
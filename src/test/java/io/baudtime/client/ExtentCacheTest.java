@@ -0,0 +1,154 @@
+/*
+ * Copyright 2019 The Baudtime Authors
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.baudtime.client;
+
+import io.baudtime.message.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+public class ExtentCacheTest {
+    private static final long STEP = 60000;
+    private static final long HOUR = 3600000;
+    private static final String KEY = "x|60000|rate(x[1m])";
+
+    private FakeFetcher fetcher;
+    private long end;
+
+    @Before
+    public void setUp() {
+        fetcher = new FakeFetcher();
+        end = align(System.currentTimeMillis());
+    }
+
+    private static long align(long t) {
+        return t - t % STEP;
+    }
+
+    private static long cacheableEnd() {
+        return align(System.currentTimeMillis() - QueryCache.RECENT_WINDOW_MILLIS);
+    }
+
+    private static ExtentCache newCache(long ttlMillis) {
+        return new ExtentCache(new ClientConfig.Builder().queryCacheTtlMillis(ttlMillis).build(), 1 << 24);
+    }
+
+    @Test
+    public void fetchesOnlyUncoveredRanges() {
+        ExtentCache cache = newCache(60000);
+        long start = end - 3 * HOUR;
+
+        long ce = cacheableEnd();
+        cache.rangeQuery(KEY, start, end, STEP, fetcher);
+        assumeTrue(ce == cacheableEnd());
+        assertEquals(ranges(start, end), fetcher.ranges);
+
+        // the cached extent ends before the recent window, only what follows it is asked for
+        fetcher.ranges.clear();
+        cache.rangeQuery(KEY, start + HOUR, end, STEP, fetcher);
+        assertEquals(ranges(ce + STEP, end), fetcher.ranges);
+
+        // head and tail around the extent
+        fetcher.ranges.clear();
+        cache.rangeQuery(KEY, start - HOUR, end, STEP, fetcher);
+        assertEquals(ranges(start - HOUR, start - STEP, ce + STEP, end), fetcher.ranges);
+
+        // the head is cached now, the tail is not
+        fetcher.ranges.clear();
+        cache.rangeQuery(KEY, start - HOUR, end, STEP, fetcher);
+        assertEquals(ranges(ce + STEP, end), fetcher.ranges);
+    }
+
+    @Test
+    public void recentWindowIsNeverCached() {
+        ExtentCache cache = newCache(60000);
+        long start = end - 2 * STEP;
+
+        cache.rangeQuery(KEY, start, end, STEP, fetcher);
+        cache.rangeQuery(KEY, start, end, STEP, fetcher);
+        assertEquals(ranges(start, end, start, end), fetcher.ranges);
+    }
+
+    @Test
+    public void stitchedResultMatchesSingleFetch() {
+        ExtentCache cache = newCache(60000);
+        long start = end - 3 * HOUR;
+        cache.rangeQuery(KEY, start, end, STEP, fetcher);
+
+        for (long[] r : new long[][]{{start - HOUR, end}, {start + HOUR, end}, {start - HOUR, start + HOUR}, {start + STEP, end - HOUR}}) {
+            QueryResponse stitched = cache.rangeQuery(KEY, r[0], r[1], STEP, fetcher);
+            assertEquals(FakeFetcher.matrix(r[0], r[1]).toJson(), stitched.getResult());
+        }
+    }
+
+    @Test
+    public void grownExtentKeepsFirstExpiry() throws Exception {
+        ExtentCache cache = newCache(1000);
+        long start = end - 3 * HOUR;
+
+        cache.rangeQuery(KEY, start, end, STEP, fetcher);
+        Thread.sleep(500);
+        // grows the extent to the left
+        cache.rangeQuery(KEY, start - HOUR, end, STEP, fetcher);
+        Thread.sleep(700);
+
+        // past the expiry of the first extent though the grown one is younger, fetched in full again
+        fetcher.ranges.clear();
+        cache.rangeQuery(KEY, start - HOUR, end, STEP, fetcher);
+        assertEquals(ranges(start - HOUR, end), fetcher.ranges);
+    }
+
+    private static List<String> ranges(long... bounds) {
+        List<String> l = new ArrayList<String>();
+        for (int i = 0; i < bounds.length; i += 2) {
+            l.add(bounds[i] + "-" + bounds[i + 1]);
+        }
+        return l;
+    }
+
+    // two series, a sample on every step, values derived from the timestamp
+    private static class FakeFetcher implements ExtentCache.Fetcher {
+        private final List<String> ranges = new ArrayList<String>();
+
+        @Override
+        public QueryResponse fetch(long start, long end) {
+            ranges.add(start + "-" + end);
+            return new QueryResponse(matrix(start, end), StatusCode.Succeed, "");
+        }
+
+        private static QueryResult matrix(long start, long end) {
+            int n = (int) ((end - start) / STEP + 1);
+            List<ResultSeries> series = new ArrayList<ResultSeries>();
+            for (int k = 0; k < 2; k++) {
+                long[] ts = new long[n];
+                double[] vs = new double[n];
+                for (int i = 0; i < n; i++) {
+                    ts[i] = start + i * STEP;
+                    vs[i] = ts[i] / 1000 + k;
+                }
+                series.add(new ResultSeries(Arrays.asList(new Label("k", String.valueOf(k))), ts, vs));
+            }
+            return new QueryResult(QueryResult.Type.MATRIX, series);
+        }
+    }
+}
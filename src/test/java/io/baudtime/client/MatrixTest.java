@@ -0,0 +1,83 @@
+/*
+ * Copyright 2019 The Baudtime Authors
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.baudtime.client;
+
+import io.baudtime.message.QueryResponse;
+import io.baudtime.message.StatusCode;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class MatrixTest {
+
+    private static Matrix matrix(String series) {
+        return Matrix.parse(new QueryResponse("{\"resultType\":\"matrix\",\"result\":[" + series + "]}", StatusCode.Succeed, ""));
+    }
+
+    private static String json(Matrix m) {
+        return m.toQueryResult().toJson();
+    }
+
+    private static String json(String series) {
+        return "{\"resultType\":\"matrix\",\"result\":[" + series + "]}";
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void onlyMatrices() {
+        Matrix.parse(new QueryResponse("{\"resultType\":\"vector\",\"result\":[]}", StatusCode.Succeed, ""));
+    }
+
+    @Test
+    public void sliceDropsEmptySeries() {
+        Matrix m = matrix("{\"metric\":{\"a\":\"1\"},\"values\":[[1,\"1\"],[2,\"2\"],[3,\"3\"]]},{\"metric\":{\"a\":\"2\"},\"values\":[[5,\"5\"]]}");
+
+        assertEquals(json("{\"metric\":{\"a\":\"1\"},\"values\":[[2,\"2\"],[3,\"3\"]]}"), json(m.slice(2000, 4000)));
+        assertEquals(json(""), json(m.slice(10000, 20000)));
+    }
+
+    @Test
+    public void mergeInterleavesAndOtherWins() {
+        Matrix a = matrix("{\"metric\":{\"a\":\"1\"},\"values\":[[1,\"1\"],[3,\"3\"]]},{\"metric\":{\"a\":\"2\"},\"values\":[[1,\"1\"]]}");
+        Matrix b = matrix("{\"metric\":{\"a\":\"1\"},\"values\":[[2,\"20\"],[3,\"30\"]]},{\"metric\":{\"a\":\"3\"},\"values\":[[1,\"1\"]]}");
+
+        assertEquals(json("{\"metric\":{\"a\":\"1\"},\"values\":[[1,\"1\"],[2,\"20\"],[3,\"30\"]]}," +
+                "{\"metric\":{\"a\":\"2\"},\"values\":[[1,\"1\"]]},{\"metric\":{\"a\":\"3\"},\"values\":[[1,\"1\"]]}"), json(a.merge(b)));
+        // neither side is changed
+        assertEquals(json("{\"metric\":{\"a\":\"1\"},\"values\":[[1,\"1\"],[3,\"3\"]]},{\"metric\":{\"a\":\"2\"},\"values\":[[1,\"1\"]]}"), json(a));
+    }
+
+    @Test
+    public void concatKeepsTimeOrder() {
+        Matrix a = matrix("{\"metric\":{\"a\":\"1\"},\"values\":[[1,\"1\"],[2,\"2\"]]}");
+        Matrix b = matrix("{\"metric\":{\"a\":\"2\"},\"values\":[[3,\"3\"]]},{\"metric\":{\"a\":\"1\"},\"values\":[[2,\"9\"],[3,\"3\"]]}");
+        Matrix c = matrix("{\"metric\":{\"a\":\"1\"},\"values\":[[4,\"4\"]]}");
+
+        // a sample not after the last one held is dropped
+        assertEquals(json("{\"metric\":{\"a\":\"1\"},\"values\":[[1,\"1\"],[2,\"2\"],[3,\"3\"],[4,\"4\"]]},{\"metric\":{\"a\":\"2\"},\"values\":[[3,\"3\"]]}"),
+                json(Matrix.concat(Arrays.asList(a, b, c))));
+    }
+
+    @Test
+    public void resultArraysAreCopies() {
+        Matrix m = matrix("{\"metric\":{\"a\":\"1\"},\"values\":[[1,\"1\"]]}");
+        m.toQueryResult().getSeries().get(0).getValues()[0] = 42;
+
+        assertEquals(json("{\"metric\":{\"a\":\"1\"},\"values\":[[1,\"1\"]]}"), json(m));
+    }
+}
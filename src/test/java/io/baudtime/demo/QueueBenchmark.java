@@ -0,0 +1,102 @@
+package io.baudtime.demo;
+
+import io.baudtime.util.MpscArrayQueue;
+import io.baudtime.util.WaitStrategy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares enqueue throughput of the sticky worker queue implementations,
+ * N producers against a single consumer, e.g. "QueueBenchmark 32 2000000".
+ */
+public class QueueBenchmark {
+    private static final Logger logger = LoggerFactory.getLogger(QueueBenchmark.class);
+    private static final int capacity = 512 / 4 + 512;
+
+    public static void main(String[] args) throws Exception {
+        int producers = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        final int total = args.length > 1 ? Integer.parseInt(args[1]) : 2000000;
+
+        for (int round = 0; round < 3; round++) {
+            logger.info("round {}: ArrayBlockingQueue {} ops/ms", round, runBlockingQueue(producers, total));
+            for (WaitStrategy ws : WaitStrategy.values()) {
+                logger.info("round {}: MpscArrayQueue({}) {} ops/ms", round, ws, runMpscQueue(producers, total, ws));
+            }
+        }
+    }
+
+    private static long runBlockingQueue(int producers, final int total) throws Exception {
+        final BlockingQueue<Object> q = new ArrayBlockingQueue<Object>(capacity);
+        final Object item = new Object();
+        final int perProducer = total / producers;
+        final CountDownLatch start = new CountDownLatch(1);
+
+        for (int i = 0; i < producers; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < perProducer; j++) {
+                            q.put(item);
+                        }
+                    } catch (InterruptedException e) {
+                        //
+                    }
+                }
+            }).start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        for (int n = perProducer * producers; n > 0; ) {
+            if (q.poll(200, TimeUnit.MILLISECONDS) != null) {
+                n--;
+            }
+        }
+        return opsPerMilli(perProducer * producers, System.nanoTime() - begin);
+    }
+
+    private static long runMpscQueue(int producers, final int total, final WaitStrategy ws) throws Exception {
+        final MpscArrayQueue<Object> q = new MpscArrayQueue<Object>(capacity);
+        final Object item = new Object();
+        final int perProducer = total / producers;
+        final CountDownLatch start = new CountDownLatch(1);
+
+        for (int i = 0; i < producers; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < perProducer; j++) {
+                            while (!q.offer(item, 200, TimeUnit.MILLISECONDS, ws)) {
+                                //
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        //
+                    }
+                }
+            }).start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        for (int n = perProducer * producers; n > 0; ) {
+            if (q.poll(200, TimeUnit.MILLISECONDS, ws) != null) {
+                n--;
+            }
+        }
+        return opsPerMilli(perProducer * producers, System.nanoTime() - begin);
+    }
+
+    private static long opsPerMilli(long ops, long nanos) {
+        return ops * 1000000L / Math.max(nanos, 1);
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2019 The Baudtime Authors
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.baudtime.discovery;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.handler.codec.dns.*;
+import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Resolves SRV records served by an in-process DNS stand-in.
+ */
+public class SrvServiceAddrProviderTest {
+    private static final String SERVICE = "_baudtime._tcp.test.local";
+
+    private NioEventLoopGroup group;
+    private Channel dns;
+    private final StandIn standIn = new StandIn();
+    private SrvServiceAddrProvider provider;
+
+    @Before
+    public void setUp() throws Exception {
+        group = new NioEventLoopGroup(1);
+        dns = new Bootstrap().group(group).channel(NioDatagramChannel.class)
+                .handler(new ChannelInitializer<NioDatagramChannel>() {
+                    @Override
+                    protected void initChannel(NioDatagramChannel ch) {
+                        ch.pipeline().addLast(new DatagramDnsQueryDecoder(), new DatagramDnsResponseEncoder(), standIn);
+                    }
+                }).bind("127.0.0.1", 0).sync().channel();
+    }
+
+    @After
+    public void tearDown() {
+        if (provider != null) {
+            provider.stopWatch();
+        }
+        dns.close();
+        group.shutdownGracefully();
+    }
+
+    private SrvServiceAddrProvider newProvider(long maxRefreshSeconds) {
+        provider = new SrvServiceAddrProvider(SERVICE, (InetSocketAddress) dns.localAddress(), maxRefreshSeconds, TimeUnit.SECONDS);
+        return provider;
+    }
+
+    @Test
+    public void usesOnlyLowestPriority() {
+        standIn.add("127.0.0.1", 8088, 1, 1, 60);
+        standIn.add("127.0.0.2", 8088, 1, 1, 60);
+        standIn.add("127.0.0.3", 8088, 2, 5, 60);
+
+        newProvider(10);
+        assertEquals(set("127.0.0.1:8088", "127.0.0.2:8088"), new HashSet<String>(provider.healthyAddress()));
+    }
+
+    @Test
+    public void weightsReachBalancer() {
+        standIn.add("127.0.0.1", 8088, 0, 3, 60);
+        standIn.add("127.0.0.2", 8089, 0, 1, 60);
+        newProvider(10);
+
+        final List<Map<String, Integer>> fed = new ArrayList<Map<String, Integer>>();
+        provider.setBalancer(new WeightedBalancer() {
+            @Override
+            public void setWeights(Map<String, Integer> weights) {
+                fed.add(weights);
+                super.setWeights(weights);
+            }
+        });
+
+        Map<String, Integer> expected = new HashMap<String, Integer>();
+        expected.put("127.0.0.1:8088", 3);
+        expected.put("127.0.0.2:8089", 1);
+        // handed over on install, then fed by every resolution
+        assertEquals(expected, fed.get(0));
+
+        standIn.clear();
+        standIn.add("127.0.0.1", 8088, 0, 5, 60);
+        assertTrue(provider.resolve().awaitUninterruptibly(5000));
+        assertEquals(Collections.singletonMap("127.0.0.1:8088", 5), fed.get(fed.size() - 1));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void rejectsUnweightedBalancer() {
+        standIn.add("127.0.0.1", 8088, 0, 1, 60);
+        newProvider(10).setBalancer(new RoundRobinBalancer());
+    }
+
+    @Test
+    public void refreshFollowsSmallestTtl() {
+        standIn.add("127.0.0.1", 8088, 0, 1, 7);
+        standIn.add("127.0.0.2", 8088, 0, 1, 3);
+        standIn.add("127.0.0.3", 8088, 1, 1, 1); // lower priority, its ttl does not count
+        newProvider(10);
+
+        Future<Long> resolved = provider.resolve().awaitUninterruptibly();
+        assertEquals(Long.valueOf(3), resolved.getNow());
+        assertEquals(3000, provider.nextRefreshMillis(resolved));
+
+        assertEquals(1000, provider.nextRefreshMillis(succeeded(0)));
+        assertEquals(10000, provider.nextRefreshMillis(succeeded(3600)));
+    }
+
+    @Test
+    public void failedResolutionKeepsAddrs() {
+        standIn.add("127.0.0.1", 8088, 0, 1, 60);
+        standIn.add("127.0.0.2", 8088, 0, 1, 60);
+        newProvider(10);
+        Set<String> before = new HashSet<String>(provider.healthyAddress());
+        assertEquals(2, before.size());
+
+        standIn.code = DnsResponseCode.NXDOMAIN;
+        Future<Long> resolved = provider.resolve().awaitUninterruptibly();
+        assertFalse(resolved.isSuccess());
+        assertEquals(before, new HashSet<String>(provider.healthyAddress()));
+
+        standIn.code = DnsResponseCode.NOERROR;
+        standIn.clear();
+        resolved = provider.resolve().awaitUninterruptibly();
+        assertFalse(resolved.isSuccess());
+        assertEquals(before, new HashSet<String>(provider.healthyAddress()));
+    }
+
+    private static Future<Long> succeeded(long ttl) {
+        return ImmediateEventExecutor.INSTANCE.newSucceededFuture(ttl);
+    }
+
+    private static Set<String> set(String... s) {
+        return new HashSet<String>(Arrays.asList(s));
+    }
+
+    @io.netty.channel.ChannelHandler.Sharable
+    private static class StandIn extends SimpleChannelInboundHandler<DatagramDnsQuery> {
+        private final List<Object[]> records = Collections.synchronizedList(new ArrayList<Object[]>());
+        private volatile DnsResponseCode code = DnsResponseCode.NOERROR;
+
+        private void add(String host, int port, int priority, int weight, long ttl) {
+            records.add(new Object[]{host, port, priority, weight, ttl});
+        }
+
+        private void clear() {
+            records.clear();
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, DatagramDnsQuery query) {
+            DnsQuestion question = query.recordAt(DnsSection.QUESTION);
+            DatagramDnsResponse response = new DatagramDnsResponse(query.recipient(), query.sender(), query.id());
+            response.setCode(code);
+            response.addRecord(DnsSection.QUESTION, question);
+
+            if (code == DnsResponseCode.NOERROR) {
+                synchronized (records) {
+                    for (Object[] r : records) {
+                        ByteBuf rdata = Unpooled.buffer();
+                        rdata.writeShort((Integer) r[2]);
+                        rdata.writeShort((Integer) r[3]);
+                        rdata.writeShort((Integer) r[1]);
+                        for (String label : ((String) r[0]).split("\\.")) {
+                            rdata.writeByte(label.length());
+                            rdata.writeBytes(label.getBytes(CharsetUtil.US_ASCII));
+                        }
+                        rdata.writeByte(0);
+                        response.addRecord(DnsSection.ANSWER, new DefaultDnsRawRecord(question.name(), DnsRecordType.SRV, (Long) r[4], rdata));
+                    }
+                }
+            }
+            ctx.writeAndFlush(response);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2019 The Baudtime Authors
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.baudtime.message;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Query results read by {@link QueryResultReader} and written back by {@link QueryResult#toJson()}.
+ */
+public class QueryResultReaderTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static QueryResult read(String json) {
+        return new QueryResultReader(json.getBytes(UTF8)).readAll();
+    }
+
+    // what the server sends must come out of toJson byte for byte
+    private static void assertRoundTrip(String json) {
+        assertEquals(json, read(json).toJson());
+        assertEquals(json, new QueryResponse(read(json), StatusCode.Succeed, "").getResult());
+    }
+
+    @Test
+    public void escapesInLabelValues() {
+        String json = "{\"resultType\":\"vector\",\"result\":[{\"metric\":{\"a\":\"q\\\"b\\\\s/\\n\\t\\r\",\"b\":\"\\u00e9t\\u00e9\",\"c\":\"\\ud83d\\ude00!\",\"d\":\"raw é 😀\"}," +
+                "\"value\":[1,\"1\"]}]}";
+        List<Label> labels = read(json).getSeries().get(0).getLabels();
+
+        assertEquals("q\"b\\s/\n\t\r", labels.get(0).getValue());
+        assertEquals("été", labels.get(1).getValue());
+        assertEquals("😀!", labels.get(2).getValue());
+        assertEquals(2, labels.get(2).getValue().codePointCount(0, labels.get(2).getValue().length()));
+        assertEquals("raw é 😀", labels.get(3).getValue());
+
+        // non ascii is written raw, so the written json reads back to the same labels
+        List<Label> again = read(read(json).toJson()).getSeries().get(0).getLabels();
+        for (int i = 0; i < labels.size(); i++) {
+            assertEquals(labels.get(i).getName(), again.get(i).getName());
+            assertEquals(labels.get(i).getValue(), again.get(i).getValue());
+        }
+    }
+
+    @Test
+    public void htmlAndControlCharactersLikeServer() {
+        assertRoundTrip("{\"resultType\":\"vector\",\"result\":[{\"metric\":{\"q\":\"a\\u003cb\\u003e\\u0026c\\u0001\\u2028\"},\"value\":[1,\"2\"]}]}");
+        assertEquals("a<b>&c\u0001\u2028", read("{\"resultType\":\"vector\",\"result\":[{\"metric\":{\"q\":\"a\\u003cb\\u003e\\u0026c\\u0001\\u2028\"},\"value\":[1,\"2\"]}]}")
+                .getSeries().get(0).getLabelValue("q"));
+    }
+
+    @Test
+    public void specialValues() {
+        String json = "{\"resultType\":\"matrix\",\"result\":[{\"metric\":{\"__name__\":\"x\"},\"values\":[[1,\"NaN\"],[2,\"+Inf\"],[3,\"-Inf\"],[4,\"-0.5\"]]}]}";
+        double[] values = read(json).getSeries().get(0).getValues();
+
+        assertTrue(Double.isNaN(values[0]));
+        assertEquals(Double.POSITIVE_INFINITY, values[1], 0);
+        assertEquals(Double.NEGATIVE_INFINITY, values[2], 0);
+        assertEquals(-0.5, values[3], 0);
+        assertRoundTrip(json);
+    }
+
+    @Test
+    public void scalarResult() {
+        String json = "{\"resultType\":\"scalar\",\"result\":[1435781451.781,\"42.5\"]}";
+        QueryResult r = read(json);
+
+        assertEquals(QueryResult.Type.SCALAR, r.getType());
+        assertEquals(1435781451781L, r.getTime());
+        assertEquals(42.5, r.getScalar(), 0);
+        assertTrue(r.getSeries().isEmpty());
+        assertRoundTrip(json);
+    }
+
+    @Test
+    public void stringResult() {
+        String json = "{\"resultType\":\"string\",\"result\":[1435781451.7,\"a\\\"b\\nc\"]}";
+        QueryResult r = read(json);
+
+        assertEquals(QueryResult.Type.STRING, r.getType());
+        assertEquals(1435781451700L, r.getTime());
+        assertEquals("a\"b\nc", r.getString());
+        assertRoundTrip(json);
+    }
+
+    @Test
+    public void emptyResults() {
+        String vector = "{\"resultType\":\"vector\",\"result\":[]}";
+        String matrix = "{\"resultType\":\"matrix\",\"result\":[]}";
+
+        assertEquals(QueryResult.Type.VECTOR, read(vector).getType());
+        assertTrue(read(vector).getSeries().isEmpty());
+        assertEquals(QueryResult.Type.MATRIX, read(matrix).getType());
+        assertTrue(read(matrix).getSeries().isEmpty());
+        assertRoundTrip(vector);
+        assertRoundTrip(matrix);
+    }
+
+    @Test
+    public void whitespaceAndMemberOrder() {
+        // result before resultType, values before metric
+        QueryResult r = read(" { \"result\" : [ { \"values\" : [ [ 1.5 , \"1\" ] ] , \"metric\" : { \"a\" : \"b\" } } ] ,\n\"resultType\" : \"matrix\" } ");
+
+        assertEquals(QueryResult.Type.MATRIX, r.getType());
+        assertEquals("b", r.getSeries().get(0).getLabelValue("a"));
+        assertEquals(1500L, r.getSeries().get(0).getTimestamps()[0]);
+    }
+
+    @Test
+    public void serverBytes() {
+        String matrix = "{\"resultType\":\"matrix\",\"result\":[" +
+                "{\"metric\":{\"__name__\":\"up\",\"instance\":\"10.0.0.1:9100\",\"job\":\"node\"},\"values\":[[1435781430.781,\"1\"],[1435781445.78,\"0.1\"],[1435781460.7,\"0.0000001\"],[1435781475,\"123456789.125\"]]}," +
+                "{\"metric\":{\"__name__\":\"up\",\"instance\":\"10.0.0.2:9100\",\"job\":\"node\"},\"values\":[[1435781430.781,\"0\"],[1435781445.78,\"1500000000000000000000\"]]}]}";
+        String vector = "{\"resultType\":\"vector\",\"result\":[{\"metric\":{},\"value\":[1435781451.781,\"3.14159\"]}]}";
+
+        assertRoundTrip(matrix);
+        assertRoundTrip(vector);
+
+        ResultSeries s = read(matrix).getSeries().get(0);
+        assertArrayEquals(new long[]{1435781430781L, 1435781445780L, 1435781460700L, 1435781475000L}, s.getTimestamps());
+        assertArrayEquals(new double[]{1, 0.1, 1e-7, 123456789.125}, s.getValues(), 0);
+    }
+
+    @Test
+    public void streamingMatchesReadAll() {
+        String json = "{\"resultType\":\"matrix\",\"result\":[{\"metric\":{\"a\":\"1\"},\"values\":[[1,\"1\"],[2,\"2\"]]},{\"metric\":{\"a\":\"2\"},\"values\":[[1,\"3\"]]}]}";
+        final List<String> seen = new ArrayList<String>();
+        new QueryResponse(json, StatusCode.Succeed, "").visitResult(new QueryResultVisitor() {
+            @Override
+            public boolean onSeries(List<Label> labels) {
+                seen.add(labels.get(0).getValue());
+                return "2".equals(labels.get(0).getValue());
+            }
+
+            @Override
+            public void onSample(long timestamp, double value) {
+                seen.add(timestamp + "=" + value);
+            }
+
+            @Override
+            public void onSeriesEnd() {
+                seen.add("end");
+            }
+        });
+
+        // the samples of the skipped series are not reported
+        assertEquals("[1, 2, 1000=3.0, end]", seen.toString());
+    }
+
+    @Test(expected = Exceptions.UnmarshalException.class)
+    public void unterminatedString() {
+        read("{\"resultType\":\"vector\",\"result\":[{\"metric\":{\"a\":\"b}]}");
+    }
+}
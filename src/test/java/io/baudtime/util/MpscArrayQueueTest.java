@@ -0,0 +1,164 @@
+/*
+ * Copyright 2019 The Baudtime Authors
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package io.baudtime.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class MpscArrayQueueTest {
+
+    @Test
+    public void batchOfferWrapsAround() {
+        MpscArrayQueue<Integer> q = new MpscArrayQueue<Integer>(8);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(q.offer(-1));
+        }
+        for (int i = 0; i < 5; i++) {
+            assertEquals(Integer.valueOf(-1), q.poll());
+        }
+
+        // starts at slot 5, slots 0 to 2 are reused
+        Integer[] es = {100, 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 100};
+        assertEquals(6, q.offer(es, 1, 7));
+        assertEquals(6, q.size());
+        // only two slots are left
+        assertEquals(2, q.offer(es, 7, 11));
+        assertEquals(0, q.offer(es, 9, 11));
+        assertEquals(8, q.size());
+
+        for (int i = 0; i < 8; i++) {
+            assertEquals(Integer.valueOf(i), q.poll());
+        }
+        assertNull(q.poll());
+        assertTrue(q.isEmpty());
+
+        assertEquals(2, q.offer(es, 9, 11));
+        assertEquals(Integer.valueOf(8), q.peek());
+        assertEquals(Integer.valueOf(8), q.poll());
+        assertEquals(Integer.valueOf(9), q.poll());
+        assertNull(q.poll());
+    }
+
+    @Test
+    public void batchOfferWithNullEnqueuesNothing() {
+        MpscArrayQueue<Integer> q = new MpscArrayQueue<Integer>(8);
+        try {
+            q.offer(new Integer[]{1, null, 3}, 0, 3);
+            fail();
+        } catch (NullPointerException e) {
+            //
+        }
+        assertTrue(q.isEmpty());
+    }
+
+    @Test
+    public void timedOfferAndPoll() {
+        MpscArrayQueue<Integer> q = new MpscArrayQueue<Integer>(2);
+        assertNull(q.poll(10, TimeUnit.MILLISECONDS, WaitStrategy.PARK));
+        assertTrue(q.offer(1, 10, TimeUnit.MILLISECONDS, WaitStrategy.PARK));
+        assertTrue(q.offer(2, 10, TimeUnit.MILLISECONDS, WaitStrategy.PARK));
+        assertFalse(q.offer(3, 10, TimeUnit.MILLISECONDS, WaitStrategy.PARK));
+        assertEquals(Integer.valueOf(1), q.poll(10, TimeUnit.MILLISECONDS, WaitStrategy.PARK));
+    }
+
+    // half of the producers offer one by one, the others in batches, all through a small ring that wraps many times
+    @Test(timeout = 60000)
+    public void multiProducersKeepEveryElementInOrder() throws Exception {
+        final int producers = 4;
+        final int perProducer = 200000;
+        final MpscArrayQueue<long[]> q = new MpscArrayQueue<long[]>(64);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < producers; i++) {
+            final int producer = i;
+            final boolean batched = i % 2 == 1;
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        Random r = new Random(producer);
+                        long[][] es = new long[33][];
+                        int seq = 0;
+                        while (seq < perProducer) {
+                            if (!batched) {
+                                if (q.offer(new long[]{producer, seq})) {
+                                    seq++;
+                                } else {
+                                    Thread.yield();
+                                }
+                                continue;
+                            }
+
+                            int n = Math.min(1 + r.nextInt(es.length - 1), perProducer - seq);
+                            for (int j = 0; j < n; j++) {
+                                es[1 + j] = new long[]{producer, seq + j};
+                            }
+                            int from = 1;
+                            while (from < 1 + n) {
+                                int offered = q.offer(es, from, 1 + n);
+                                if (offered == 0) {
+                                    Thread.yield();
+                                }
+                                from += offered;
+                            }
+                            seq += n;
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+
+        int[] next = new int[producers];
+        start.countDown();
+        for (int n = producers * perProducer; n > 0; ) {
+            long[] e = q.poll(1, TimeUnit.SECONDS, WaitStrategy.YIELD);
+            if (e == null) {
+                assertNull(failure.get());
+                continue;
+            }
+            n--;
+            int producer = (int) e[0];
+            // a lost, duplicated or reordered element breaks the sequence of its producer
+            assertEquals("producer " + producer, next[producer], e[1]);
+            next[producer]++;
+        }
+
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertNull(failure.get());
+        for (int i = 0; i < producers; i++) {
+            assertEquals(perProducer, next[i]);
+        }
+        assertNull(q.poll());
+    }
+}